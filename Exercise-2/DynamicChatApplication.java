@@ -1,4 +1,27 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.StandardSocketOptions;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.*;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 // Observer Pattern
 interface Observer {
@@ -7,6 +30,10 @@ interface Observer {
 
 class User implements Observer {
     private String username;
+    private int id = -1;
+    private volatile boolean sequenced;
+    // Set by Presence for transport sessions; console users have none
+    private volatile PresenceLease presence;
     
     public User(String username) {
         this.username = username;
@@ -16,108 +43,5740 @@ class User implements Observer {
         return username;
     }
 
+    // Dense id handed out by UserRegistry; -1 until registered
+    public int getId() {
+        return id;
+    }
+
+    void assignId(int id) {
+        this.id = id;
+    }
+
+    PresenceLease presence() {
+        return presence;
+    }
+
+    void attachPresence(PresenceLease lease) {
+        presence = lease;
+    }
+
+    // Clients that resume by sequence number see "<room>#<sequence> " before each room message
+    public boolean isSequenced() {
+        return sequenced;
+    }
+
+    public void setSequenced(boolean sequenced) {
+        this.sequenced = sequenced;
+    }
+
+    @Override
+    public void update(String message) {
+        OutputSinks.get().println(username + " received: " + message);
+    }
+
+    // Transports with their own write queue report congestion so the mailbox stops draining into them
+    public boolean isReady() {
+        return true;
+    }
+
+    // Runs task once the transport has drained enough to accept more
+    public void whenReady(Runnable task) {
+        task.run();
+    }
+
+    // Drops the transport once Presence has logged the user out, for falling behind or for going silent.
+    // Leaving rooms and freeing the name are done by Presence, not here.
+    public void evict() {
+        OutputSinks.get().println(username + " was disconnected for falling behind.");
+    }
+}
+
+// Compressed bitmap over user ids: 2^16-id chunks stored as sorted arrays when sparse and bitsets when dense
+class RoaringBitmap {
+    private static final int ARRAY_LIMIT = 4096;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size;
+
+    public boolean add(int value) {
+        char key = (char) (value >>> 16);
+        int index = find(key);
+        if (index < 0) {
+            index = -index - 1;
+            insert(index, key, new ArrayContainer());
+        }
+        int before = containers[index].cardinality();
+        containers[index] = containers[index].add((char) value);
+        return containers[index].cardinality() > before;
+    }
+
+    public boolean remove(int value) {
+        int index = find((char) (value >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        int before = containers[index].cardinality();
+        Container container = containers[index].remove((char) value);
+        if (container.cardinality() == 0) {
+            delete(index);
+        } else {
+            containers[index] = container;
+        }
+        return container.cardinality() < before;
+    }
+
+    public boolean contains(int value) {
+        int index = find((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public RoaringBitmap and(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.appendNonEmpty(keys[i], containers[i].and(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public RoaringBitmap or(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                result.appendNonEmpty(keys[i], containers[i].copy());
+                i++;
+            } else if (i == size || keys[i] > other.keys[j]) {
+                result.appendNonEmpty(other.keys[j], other.containers[j].copy());
+                j++;
+            } else {
+                result.appendNonEmpty(keys[i], containers[i].or(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public RoaringBitmap andNot(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                j++;
+            }
+            boolean overlaps = j < other.size && other.keys[j] == keys[i];
+            result.appendNonEmpty(keys[i], overlaps ? containers[i].andNot(other.containers[j]) : containers[i].copy());
+        }
+        return result;
+    }
+
+    public RoaringBitmap copy() {
+        return or(new RoaringBitmap());
+    }
+
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    // Visits the values ranked [from, to) in ascending order; containers wholly below from are skipped unread
+    public void forEachInRange(int from, int to, IntConsumer action) {
+        int rank = 0;
+        for (int i = 0; i < size && rank < to; i++) {
+            int cardinality = containers[i].cardinality();
+            if (rank + cardinality > from) {
+                containers[i].forEachInRange(keys[i] << 16, Math.max(0, from - rank), Math.min(cardinality, to - rank), action);
+            }
+            rank += cardinality;
+        }
+    }
+
+    public int[] toArray() {
+        int[] values = new int[cardinality()];
+        int[] next = {0};
+        forEach(value -> values[next[0]++] = value);
+        return values;
+    }
+
+    private int find(char key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else if (keys[mid] > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void insert(int index, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    private void delete(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+        containers[--size] = null;
+    }
+
+    private void appendNonEmpty(char key, Container container) {
+        if (container.cardinality() > 0) {
+            insert(size, key, container);
+        }
+    }
+
+    private abstract static class Container {
+        abstract Container add(char value);
+
+        abstract Container remove(char value);
+
+        abstract boolean contains(char value);
+
+        abstract int cardinality();
+
+        abstract void forEach(int high, IntConsumer action);
+
+        // Visits the values ranked [from, to) within this container
+        abstract void forEachInRange(int high, int from, int to, IntConsumer action);
+
+        abstract Container copy();
+
+        abstract BitmapContainer toBitmap();
+
+        Container and(Container other) {
+            if (this instanceof ArrayContainer) {
+                return ((ArrayContainer) this).filter(other, true);
+            }
+            if (other instanceof ArrayContainer) {
+                return ((ArrayContainer) other).filter(this, true);
+            }
+            return toBitmap().combine(other.toBitmap(), (a, b) -> a & b);
+        }
+
+        Container or(Container other) {
+            return toBitmap().combine(other.toBitmap(), (a, b) -> a | b);
+        }
+
+        Container andNot(Container other) {
+            if (this instanceof ArrayContainer) {
+                return ((ArrayContainer) this).filter(other, false);
+            }
+            return toBitmap().combine(other.toBitmap(), (a, b) -> a & ~b);
+        }
+    }
+
+    private static class ArrayContainer extends Container {
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_LIMIT) {
+                return toBitmap().add(value);
+            }
+            index = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, cardinality * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < cardinality; i++) {
+                action.accept(high | values[i]);
+            }
+        }
+
+        @Override
+        void forEachInRange(int high, int from, int to, IntConsumer action) {
+            for (int i = from; i < to; i++) {
+                action.accept(high | values[i]);
+            }
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 1)), cardinality);
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+
+        // Keeps the values that are (or with keep=false, are not) present in the other container
+        Container filter(Container other, boolean keep) {
+            char[] kept = new char[Math.max(cardinality, 1)];
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(values[i]) == keep) {
+                    kept[count++] = values[i];
+                }
+            }
+            return new ArrayContainer(kept, count);
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer() {
+            this(new long[1024], 0);
+        }
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            long before = words[value >>> 6];
+            words[value >>> 6] = before | (1L << value);
+            if (before != words[value >>> 6]) {
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long before = words[value >>> 6];
+            words[value >>> 6] = before & ~(1L << value);
+            if (before != words[value >>> 6]) {
+                cardinality--;
+            }
+            return cardinality <= ARRAY_LIMIT ? toArray() : this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(high | (i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        void forEachInRange(int high, int from, int to, IntConsumer action) {
+            int rank = 0;
+            for (int i = 0; i < words.length && rank < to; i++) {
+                long word = words[i];
+                int bits = Long.bitCount(word);
+                if (rank + bits <= from) {
+                    rank += bits;
+                    continue;
+                }
+                while (word != 0 && rank < to) {
+                    if (rank >= from) {
+                        action.accept(high | (i << 6) + Long.numberOfTrailingZeros(word));
+                    }
+                    word &= word - 1;
+                    rank++;
+                }
+            }
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            return this;
+        }
+
+        Container combine(BitmapContainer other, LongBinaryOperator operation) {
+            long[] combined = new long[words.length];
+            int count = 0;
+            for (int i = 0; i < words.length; i++) {
+                combined[i] = operation.applyAsLong(words[i], other.words[i]);
+                count += Long.bitCount(combined[i]);
+            }
+            BitmapContainer result = new BitmapContainer(combined, count);
+            return count <= ARRAY_LIMIT ? result.toArray() : result;
+        }
+
+        private ArrayContainer toArray() {
+            char[] values = new char[Math.max(cardinality, 1)];
+            int[] next = {0};
+            forEach(0, value -> values[next[0]++] = (char) value);
+            return new ArrayContainer(values, cardinality);
+        }
+    }
+}
+
+// Room membership representation; large rooms switch to a compressed bitmap
+interface RoomMembership {
+    boolean add(int id);
+
+    boolean remove(int id);
+
+    boolean contains(int id);
+
+    int size();
+
+    boolean isEmpty();
+
+    MemberSnapshot snapshot();
+
+    // Read-only view for set algebra; do not mutate the result
+    RoaringBitmap asBitmap();
+}
+
+// Membership for mega-rooms: a few bits per member instead of an array entry and a hash slot each
+class BitmapMembership implements RoomMembership {
+    private final RoaringBitmap members = new RoaringBitmap();
+    private int size;
+    private MemberSnapshot snapshot;
+
+    public static BitmapMembership copyOf(RoomMembership membership) {
+        BitmapMembership copy = new BitmapMembership();
+        MemberSnapshot members = membership.snapshot();
+        members.forEach(0, members.size(), copy::add);
+        return copy;
+    }
+
+    @Override
+    public boolean add(int id) {
+        if (!members.add(id)) {
+            return false;
+        }
+        size++;
+        snapshot = null;
+        return true;
+    }
+
+    @Override
+    public boolean remove(int id) {
+        if (!members.remove(id)) {
+            return false;
+        }
+        size--;
+        snapshot = null;
+        return true;
+    }
+
+    @Override
+    public boolean contains(int id) {
+        return members.contains(id);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // A frozen copy of the bitmap: at most 8 KB per 65536 ids, rather than an int per member
+    @Override
+    public MemberSnapshot snapshot() {
+        if (snapshot == null) {
+            snapshot = MemberSnapshot.ofBitmap(members.copy(), size);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public RoaringBitmap asBitmap() {
+        return members;
+    }
+}
+
+// Registry handing each user a dense int id; names are only hashed at the edges
+class UserRegistry {
+    private static final UserRegistry INSTANCE = new UserRegistry();
+
+    private final ConcurrentMap<String, User> byName = new ConcurrentHashMap<>();
+    private final RoaringBitmap online = new RoaringBitmap();
+    private volatile User[] byId = new User[1024];
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+
+    private UserRegistry() {}
+
+    public static UserRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    // The id is assigned before the name is published, so a user found by name always has a valid id.
+    // Losing the race for the name hands the id straight back.
+    public boolean register(User user) {
+        if (byName.containsKey(user.getUsername())) {
+            return false;
+        }
+        int id = claimId(user);
+        if (byName.putIfAbsent(user.getUsername(), user) != null) {
+            releaseId(id);
+            return false;
+        }
+        return true;
+    }
+
+    public void unregister(User user) {
+        if (byName.remove(user.getUsername(), user)) {
+            releaseId(user.getId());
+        }
+    }
+
+    private synchronized int claimId(User user) {
+        int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        User[] users = byId;
+        if (id >= users.length) {
+            users = Arrays.copyOf(users, users.length * 2);
+        }
+        user.assignId(id);
+        users[id] = user;
+        byId = users;
+        online.add(id);
+        return id;
+    }
+
+    private synchronized void releaseId(int id) {
+        byId[id] = null;
+        online.remove(id);
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    public User find(String username) {
+        return byName.get(username);
+    }
+
+    public User get(int id) {
+        User[] users = byId;
+        return id >= 0 && id < users.length ? users[id] : null;
+    }
+
+    public synchronized boolean isOnline(int id) {
+        return online.contains(id);
+    }
+
+    public synchronized int onlineCount() {
+        return online.cardinality();
+    }
+
+    public synchronized RoaringBitmap onlineSnapshot() {
+        return online.copy();
+    }
+}
+
+// What a room does with a subscriber whose mailbox has passed the high-water mark
+enum BackpressurePolicy {
+    DROP_OLDEST,
+    // Queued messages from the same room are replaced by the newest one
+    COALESCE,
+    DISCONNECT,
+    // Live messages from the room are skipped and replayed from its log once the mailbox has drained
+    CATCH_UP;
+
+    private static final BackpressurePolicy DEFAULT = valueOf(System.getProperty("chat.backpressure.default", "DROP_OLDEST"));
+    // Room types are id prefixes, e.g. chat.backpressure.rooms=ticker-:COALESCE,mobile-:CATCH_UP
+    private static final Map<String, BackpressurePolicy> BY_PREFIX = parse(System.getProperty("chat.backpressure.rooms", ""));
+
+    public static BackpressurePolicy forRoom(String roomId) {
+        BackpressurePolicy policy = DEFAULT;
+        int matched = -1;
+        for (Map.Entry<String, BackpressurePolicy> rule : BY_PREFIX.entrySet()) {
+            if (roomId.startsWith(rule.getKey()) && rule.getKey().length() > matched) {
+                policy = rule.getValue();
+                matched = rule.getKey().length();
+            }
+        }
+        return policy;
+    }
+
+    private static Map<String, BackpressurePolicy> parse(String rules) {
+        Map<String, BackpressurePolicy> byPrefix = new HashMap<>();
+        for (String rule : rules.split(",")) {
+            int colon = rule.lastIndexOf(':');
+            if (colon > 0) {
+                byPrefix.put(rule.substring(0, colon).trim(), valueOf(rule.substring(colon + 1).trim().toUpperCase(Locale.ROOT)));
+            }
+        }
+        return byPrefix;
+    }
+}
+
+// Asynchronous fan-out: every subscriber owns a bounded mailbox drained off the sender's thread
+class DeliveryEngine {
+    private static final int MAILBOX_CAPACITY = 1024;
+    // Past the high-water mark the room's backpressure policy applies; catch-up replay resumes below the low-water mark
+    private static final int HIGH_WATER = Math.min(MAILBOX_CAPACITY, Integer.getInteger("chat.mailbox.highWater", 768));
+    private static final int LOW_WATER = HIGH_WATER / 4;
+    private static final int DRAIN_BATCH = 64;
+    // Batch subscribers get up to BATCH_SIZE frames per call, held back at most MAX_BATCH_DELAY to fill a batch
+    private static final int BATCH_SIZE = Integer.getInteger("chat.delivery.batchSize", DRAIN_BATCH);
+    private static final long MAX_BATCH_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.delivery.maxBatchDelayMicros", 2000));
+    private static final int IDLE = 0;
+    private static final int WAITING = 1;
+    private static final int SCHEDULED = 2;
+    // Rooms larger than this fan out through a tree of relay tasks spread over every core
+    private static final int TREE_THRESHOLD = Integer.getInteger("chat.fanout.treeThreshold", 4096);
+    private static final int TREE_DEGREE = Math.max(2, Integer.getInteger("chat.fanout.degree", 4));
+    private static final int TREE_LEAF_SIZE = 1024;
+    private static DeliveryEngine instance;
+
+    // Indexed by user id so delivery never hashes
+    private volatile Mailbox[] mailboxes = new Mailbox[1024];
+    private final ExecutorService drainers;
+    private final ForkJoinPool relays;
+    private final ScheduledExecutorService batchTimer;
+    // Frames thrown away for full, evicted or lagging mailboxes, across every subscriber
+    private final LongAdder dropped = new LongAdder();
+
+    private DeliveryEngine(int threads) {
+        relays = new ForkJoinPool(threads);
+        batchTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "delivery-batch-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        drainers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "delivery-drainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static synchronized DeliveryEngine getInstance() {
+        if (instance == null) {
+            instance = new DeliveryEngine(Runtime.getRuntime().availableProcessors());
+        }
+        return instance;
+    }
+
+    public void deliver(User subscriber, ChatMessage message) {
+        offer(subscriber, new SharedFrame(message));
+    }
+
+    // Exactly one of the callbacks runs: onWritten once the subscriber's transport has written the message,
+    // or onDropped if it is given up. The frame skips the high-water mark and is never evicted for another.
+    public void deliver(User subscriber, ChatMessage message, Runnable onWritten, Runnable onDropped) {
+        offer(subscriber, new SharedFrame(message, BackpressurePolicy.DROP_OLDEST, onWritten, onDropped));
+    }
+
+    // One SharedFrame per broadcast; every mailbox holds a reference until its subscriber is done.
+    // Takes over the caller's reference to the frame.
+    public void deliverAll(MemberSnapshot members, SharedFrame frame) {
+        try {
+            if (members.size() > TREE_THRESHOLD) {
+                // Waiting for the tree keeps successive broadcasts ordered in every mailbox
+                relays.invoke(new RelayTask(this, members, frame, 0, members.size()));
+            } else {
+                enqueue(members, frame, 0, members.size());
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void enqueue(MemberSnapshot members, SharedFrame frame, int from, int to) {
+        UserRegistry registry = UserRegistry.getInstance();
+        members.forEach(from, to, id -> {
+            User subscriber = registry.get(id);
+            if (subscriber != null) {
+                offer(subscriber, frame.retain());
+            }
+        });
+    }
+
+    // A relay splits its partition among TREE_DEGREE children until partitions are leaf-sized
+    private static class RelayTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient DeliveryEngine engine;
+        private final transient MemberSnapshot members;
+        private final transient SharedFrame frame;
+        private final int from;
+        private final int to;
+
+        RelayTask(DeliveryEngine engine, MemberSnapshot members, SharedFrame frame, int from, int to) {
+            this.engine = engine;
+            this.members = members;
+            this.frame = frame;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TREE_LEAF_SIZE) {
+                engine.enqueue(members, frame, from, to);
+                return;
+            }
+            int step = (to - from + TREE_DEGREE - 1) / TREE_DEGREE;
+            List<RelayTask> children = new ArrayList<>(TREE_DEGREE);
+            for (int start = from; start < to; start += step) {
+                children.add(new RelayTask(engine, members, frame, start, Math.min(to, start + step)));
+            }
+            invokeAll(children);
+        }
+    }
+
+    public synchronized void release(User subscriber) {
+        int id = subscriber.getId();
+        Mailbox mailbox = id < mailboxes.length ? mailboxes[id] : null;
+        if (mailbox != null && mailbox.subscriber == subscriber) {
+            mailboxes[id] = null;
+            mailbox.discard();
+        }
+    }
+
+    private void offer(User subscriber, SharedFrame frame) {
+        Mailbox mailbox = mailboxFor(subscriber);
+        if (mailbox != null) {
+            mailbox.offer(frame);
+        } else {
+            frame.dropped();
+            frame.release();
+        }
+    }
+
+    // Null once the subscriber has logged out
+    private Mailbox mailboxFor(User subscriber) {
+        int id = subscriber.getId();
+        Mailbox[] table = mailboxes;
+        Mailbox mailbox = id < table.length ? table[id] : null;
+        return mailbox != null && mailbox.subscriber == subscriber ? mailbox : createMailbox(subscriber);
+    }
+
+    // Ids are recycled, so a slot whose mailbox belongs to an earlier user is replaced. A delivery still addressed
+    // to that earlier user, such as a queued inbox window, must not take the slot back from the id's new owner.
+    private synchronized Mailbox createMailbox(User subscriber) {
+        int id = subscriber.getId();
+        if (UserRegistry.getInstance().get(id) != subscriber) {
+            return null;
+        }
+        Mailbox[] table = mailboxes;
+        if (id >= table.length) {
+            table = Arrays.copyOf(table, Math.max(id + 1, table.length * 2));
+        }
+        Mailbox mailbox = table[id];
+        if (mailbox == null || mailbox.subscriber != subscriber) {
+            mailbox = new Mailbox(subscriber);
+            table[id] = mailbox;
+        }
+        mailboxes = table;
+        return mailbox;
+    }
+
+    // Sends roomId's messages from fromSequence on through the catch-up path, paced by how fast the subscriber drains
+    public void replayFrom(User subscriber, String roomId, long fromSequence) {
+        Mailbox mailbox = mailboxFor(subscriber);
+        if (mailbox == null) {
+            return;
+        }
+        mailbox.lagging.merge(roomId, fromSequence, Math::min);
+        mailbox.schedule();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    // Waits until every mailbox is empty or the timeout elapses, then stops the drainers
+    public void shutdown(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline && !isIdle()) {
+            Thread.onSpinWait();
+        }
+        drainers.shutdown();
+        batchTimer.shutdown();
+    }
+
+    private boolean isIdle() {
+        for (Mailbox mailbox : mailboxes) {
+            if (mailbox != null && !mailbox.isIdle()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class Mailbox implements Runnable {
+        private final User subscriber;
+        // Tracked inbox frames skip the high-water mark, so there is room for a full inbox window on top
+        private final BlockingQueue<SharedFrame> queue = new ArrayBlockingQueue<>(MAILBOX_CAPACITY + Inbox.WINDOW);
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        private final boolean batching;
+        // Smoothed gap between arrivals; racy updates from several rooms only blur the estimate
+        private volatile long arrivalGapNanos = Long.MAX_VALUE;
+        private volatile long lastArrivalNanos;
+        // Set while the subscriber's transport is congested; its drain callback reschedules us
+        private final AtomicBoolean parked = new AtomicBoolean();
+        // Rooms in catch-up mode, mapped to the next sequence to replay from the room's log
+        private final ConcurrentMap<String, Long> lagging = new ConcurrentHashMap<>();
+        private final AtomicBoolean catchingUp = new AtomicBoolean();
+        private volatile boolean evicted;
+
+        Mailbox(User subscriber) {
+            this.subscriber = subscriber;
+            batching = subscriber instanceof BatchObserver;
+        }
+
+        void offer(SharedFrame frame) {
+            // A lagging room's live messages are covered by the log replay
+            if (evicted || (frame.roomId() != null && lagging.containsKey(frame.roomId()))
+                    || (queue.size() >= HIGH_WATER && !frame.isTracked() && !relieve(frame)) || !queue.offer(frame)) {
+                drop(frame);
+                return;
+            }
+            if (batching) {
+                recordArrival();
+            }
+            if (!parked.get()) {
+                scheduleBatch();
+            }
+        }
+
+        private void recordArrival() {
+            long now = System.nanoTime();
+            long gap = now - lastArrivalNanos;
+            lastArrivalNanos = now;
+            long smoothed = arrivalGapNanos;
+            arrivalGapNanos = smoothed == Long.MAX_VALUE ? gap : smoothed + (gap - smoothed) / 8;
+        }
+
+        // Long enough to fill a batch at the current send rate, and no wait at all when traffic is sparse
+        private long batchDelayNanos() {
+            long gap = arrivalGapNanos;
+            return gap >= MAX_BATCH_DELAY_NANOS ? 0 : Math.min(MAX_BATCH_DELAY_NANOS, gap * (BATCH_SIZE - queue.size()));
+        }
+
+        private void scheduleBatch() {
+            if (!batching || queue.size() >= BATCH_SIZE) {
+                if (state.compareAndSet(IDLE, SCHEDULED) || state.compareAndSet(WAITING, SCHEDULED)) {
+                    drainers.execute(this);
+                }
+                return;
+            }
+            long delay = batchDelayNanos();
+            if (delay <= 0) {
+                schedule();
+            } else if (state.compareAndSet(IDLE, WAITING)) {
+                batchTimer.schedule(() -> {
+                    if (state.compareAndSet(WAITING, SCHEDULED)) {
+                        drainers.execute(this);
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        // Applies the frame's policy at the high-water mark; false if the frame itself must not be queued
+        private boolean relieve(SharedFrame frame) {
+            BackpressurePolicy policy = frame.roomId() == null ? BackpressurePolicy.DROP_OLDEST : frame.policy();
+            if (policy == BackpressurePolicy.DISCONNECT) {
+                evicted = true;
+                discard();
+                Presence.getInstance().evict(subscriber);
+                return false;
+            }
+            if (policy == BackpressurePolicy.CATCH_UP) {
+                lagging.putIfAbsent(frame.roomId(), frame.sequence());
+                return false;
+            }
+            if (policy == BackpressurePolicy.COALESCE && removeQueued(frame.roomId()) > 0) {
+                return true;
+            }
+            return evictOldest();
+        }
+
+        // False when every queued frame must be kept, in which case the incoming frame is the one dropped
+        private boolean evictOldest() {
+            for (SharedFrame queued : queue) {
+                if (queued.isEvictable()) {
+                    // Losing the race to the drainer frees the space just the same
+                    if (queue.remove(queued)) {
+                        drop(queued);
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void drop(SharedFrame frame) {
+            dropped.increment();
+            frame.dropped();
+            frame.release();
+        }
+
+        private int removeQueued(String roomId) {
+            List<SharedFrame> stale = new ArrayList<>();
+            for (SharedFrame queued : queue) {
+                if (roomId.equals(queued.roomId())) {
+                    stale.add(queued);
+                }
+            }
+            int removed = 0;
+            for (SharedFrame queued : stale) {
+                // remove() is atomic, so a frame the drainer already took is never released twice
+                if (queue.remove(queued)) {
+                    queued.release();
+                    removed++;
+                }
+            }
+            dropped.add(removed);
+            return removed;
+        }
+
+        void discard() {
+            SharedFrame frame;
+            while ((frame = queue.poll()) != null) {
+                frame.dropped();
+                frame.release();
+            }
+        }
+
+        boolean isIdle() {
+            return queue.isEmpty() && state.get() == IDLE && (lagging.isEmpty() || evicted);
+        }
+
+        private void schedule() {
+            if (state.compareAndSet(IDLE, SCHEDULED)) {
+                drainers.execute(this);
+            }
+        }
+
+        private void unpark() {
+            parked.set(false);
+            schedule();
+        }
+
+        // Drains a bounded batch so one busy subscriber cannot monopolise a drainer thread
+        @Override
+        public void run() {
+            try {
+                if (batching) {
+                    drainBatch();
+                } else {
+                    drainEach();
+                }
+            } finally {
+                state.set(IDLE);
+                if (parked.get()) {
+                    subscriber.whenReady(this::unpark);
+                } else if (!queue.isEmpty()) {
+                    scheduleBatch();
+                } else {
+                    resumeCatchUp();
+                }
+            }
+        }
+
+        private void drainEach() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                if (!subscriber.isReady()) {
+                    parked.set(true);
+                    return;
+                }
+                SharedFrame frame = queue.poll();
+                if (frame == null) {
+                    return;
+                }
+                try {
+                    if (subscriber instanceof FrameObserver) {
+                        // Ownership of this mailbox's reference passes to the subscriber
+                        ((FrameObserver) subscriber).update(frame);
+                    } else {
+                        try {
+                            subscriber.update(frame.text(subscriber.isSequenced()));
+                            frame.written();
+                        } finally {
+                            frame.release();
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Delivery failed: " + e.getMessage());
+                }
+            }
+        }
+
+        // One callback, and one write for socket transports, per batch instead of per frame
+        private void drainBatch() {
+            if (!subscriber.isReady()) {
+                parked.set(true);
+                return;
+            }
+            List<SharedFrame> batch = new ArrayList<>(Math.min(queue.size(), BATCH_SIZE));
+            queue.drainTo(batch, BATCH_SIZE);
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                // Ownership of every frame's reference passes to the subscriber
+                ((BatchObserver) subscriber).update(batch);
+            } catch (RuntimeException e) {
+                System.err.println("Delivery failed: " + e.getMessage());
+            }
+        }
+
+        // Replays one lagging room from its log, on that room's loop, into the space freed below the high-water mark
+        private void resumeCatchUp() {
+            if (lagging.isEmpty() || evicted || queue.size() > LOW_WATER || !catchingUp.compareAndSet(false, true)) {
+                return;
+            }
+            Iterator<Map.Entry<String, Long>> next = lagging.entrySet().iterator();
+            if (!next.hasNext()) {
+                catchingUp.set(false);
+                return;
+            }
+            Map.Entry<String, Long> entry = next.next();
+            String roomId = entry.getKey();
+            ChatRoom room = ChatRoom.findRoom(roomId);
+            if (room == null) {
+                lagging.remove(roomId);
+                catchingUp.set(false);
+                schedule();
+                return;
+            }
+            BackpressurePolicy policy = BackpressurePolicy.forRoom(roomId);
+            // Live frames from other rooms may fill the space first; replay then stops and resumes from the refused message
+            room.catchUp(subscriber, entry.getValue(), HIGH_WATER - queue.size(),
+                    message -> queue.size() < HIGH_WATER && queue.offer(new SharedFrame(message, policy)),
+                    resumeFrom -> {
+                        if (resumeFrom < 0) {
+                            lagging.remove(roomId);
+                        } else {
+                            lagging.put(roomId, resumeFrom);
+                        }
+                        catchingUp.set(false);
+                        schedule();
+                    });
+        }
+    }
+}
+
+// Subscriber that can write a shared pre-encoded frame; it must call release() once finished with it
+interface FrameObserver extends Observer {
+    void update(SharedFrame frame);
+}
+
+// Subscriber that takes frames in batches; it must call release() on each frame once finished with it
+interface BatchObserver extends Observer {
+    void update(List<SharedFrame> frames);
+}
+
+// Destination for per-message console output, chosen with chat.output=async|direct|null
+interface OutputSink {
+    void println(String line);
+
+    // Blocks until everything written so far has reached the underlying stream
+    void flush();
+}
+
+class OutputSinks {
+    private static volatile OutputSink sink = create(System.getProperty("chat.output", "async"));
+
+    private OutputSinks() {}
+
+    public static OutputSink get() {
+        return sink;
+    }
+
+    public static void set(OutputSink replacement) {
+        sink.flush();
+        sink = replacement;
+    }
+
+    private static OutputSink create(String kind) {
+        switch (kind.toLowerCase(Locale.ROOT)) {
+            case "null":
+                return new NullSink();
+            case "direct":
+                return new DirectSink();
+            default:
+                return new AsyncBufferedSink(System.out, Integer.getInteger("chat.output.bufferLines", 65_536));
+        }
+    }
+}
+
+// Discards everything; for benchmarks that should measure delivery rather than the terminal
+class NullSink implements OutputSink {
+    @Override
+    public void println(String line) {}
+
+    @Override
+    public void flush() {}
+}
+
+class DirectSink implements OutputSink {
+    @Override
+    public void println(String line) {
+        System.out.println(line);
+    }
+
+    @Override
+    public void flush() {
+        System.out.flush();
+    }
+}
+
+// Callers only enqueue; one writer thread takes the stream's lock and flushes once per batch of lines
+class AsyncBufferedSink implements OutputSink {
+    private static final int MAX_BATCH = 4096;
+
+    private final PrintStream out;
+    private final BlockingQueue<String> lines;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    AsyncBufferedSink(PrintStream out, int capacity) {
+        this.out = out;
+        lines = new ArrayBlockingQueue<>(capacity);
+        Thread writer = new Thread(this::writeLoop, "output-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // A full buffer slows producers down rather than losing output
+    @Override
+    public void println(String line) {
+        submitted.incrementAndGet();
+        try {
+            lines.put(line);
+        } catch (InterruptedException e) {
+            submitted.decrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void flush() {
+        long target = submitted.get();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (written.get() < target && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>(MAX_BATCH);
+        StringBuilder text = new StringBuilder();
+        String separator = System.lineSeparator();
+        while (true) {
+            try {
+                batch.add(lines.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            lines.drainTo(batch, MAX_BATCH - 1);
+            for (String line : batch) {
+                text.append(line).append(separator);
+            }
+            out.print(text);
+            out.flush();
+            written.addAndGet(batch.size());
+            batch.clear();
+            text.setLength(0);
+        }
+    }
+}
+
+// A rendered message queued inside a transport, with what to run once the transport has written or dropped it
+class PendingText {
+    final String text;
+    private final Runnable onWritten;
+    private final Runnable onDropped;
+
+    PendingText(String text, Runnable onWritten) {
+        this(text, onWritten, null);
+    }
+
+    PendingText(String text, Runnable onWritten, Runnable onDropped) {
+        this.text = text;
+        this.onWritten = onWritten;
+        this.onDropped = onDropped;
+    }
+
+    // Carries a tracked frame's callbacks; the frame itself may be released as soon as this is built
+    static PendingText of(SharedFrame frame, boolean sequenced) {
+        return new PendingText(frame.text(sequenced), frame::written, frame.isTracked() ? frame::dropped : null);
+    }
+
+    // Tracked texts are dropped only when nothing else is left to drop
+    boolean isTracked() {
+        return onDropped != null;
+    }
+
+    void written() {
+        if (onWritten != null) {
+            onWritten.run();
+        }
+    }
+
+    void dropped() {
+        if (onDropped != null) {
+            onDropped.run();
+        }
+    }
+}
+
+// Pooled direct buffers for encoded frames, bucketed by power-of-two capacity
+class FramePool {
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 16;
+    private static final int MAX_POOLED_PER_CLASS = 256;
+    private static final List<Queue<ByteBuffer>> POOLS = new ArrayList<>();
+
+    static {
+        for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+            POOLS.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    private FramePool() {}
+
+    public static ByteBuffer acquire(int size) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+        if (shift > MAX_SHIFT) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = POOLS.get(shift - MIN_SHIFT).poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(1 << shift);
+    }
+
+    public static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_SHIFT) || capacity > (1 << MAX_SHIFT)) {
+            return;
+        }
+        Queue<ByteBuffer> pool = POOLS.get(Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT);
+        // The size check is racy but only bounds how many idle buffers we keep
+        if (pool.size() < MAX_POOLED_PER_CLASS) {
+            pool.offer(buffer);
+        }
+    }
+}
+
+// A broadcast message encoded at most once; recipients write read-only slices of the same buffer
+class SharedFrame {
+    private static final int OP_TEXT = 0x1;
+
+    private final ChatMessage message;
+    private final BackpressurePolicy policy;
+    private final Runnable onWritten;
+    private final Runnable onDropped;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile String text;
+    private volatile ByteBuffer webSocketFrame;
+
+    public SharedFrame(ChatMessage message) {
+        this(message, BackpressurePolicy.DROP_OLDEST, null, null);
+    }
+
+    public SharedFrame(ChatMessage message, BackpressurePolicy policy) {
+        this(message, policy, null, null);
+    }
+
+    // The policy is the sending room's, applied if a subscriber's mailbox is congested.
+    // A tracked frame reports its fate: onWritten once a transport has written it, onDropped if it is given up instead.
+    public SharedFrame(ChatMessage message, BackpressurePolicy policy, Runnable onWritten, Runnable onDropped) {
+        this.message = message;
+        this.policy = policy;
+        this.onWritten = onWritten;
+        this.onDropped = onDropped;
+    }
+
+    public ChatMessage message() {
+        return message;
+    }
+
+    // Rendered once per frame, however many subscribers read it; a racing second render is harmless
+    public String text() {
+        String rendered = text;
+        if (rendered == null) {
+            rendered = message.render();
+            text = rendered;
+        }
+        return rendered;
+    }
+
+    // Inbox messages are prefixed "@inbox#<sequence> "; that is the number a client acknowledges
+    public String text(boolean sequenced) {
+        if (!sequenced || message.getSequence() < 0) {
+            return text();
+        }
+        String stream = message.getRoomId() != null ? message.getRoomId() : "@inbox";
+        return stream + "#" + message.getSequence() + " " + text();
+    }
+
+    public String roomId() {
+        return message.getRoomId();
+    }
+
+    public long sequence() {
+        return message.getSequence();
+    }
+
+    public BackpressurePolicy policy() {
+        return policy;
+    }
+
+    public boolean isTracked() {
+        return onDropped != null;
+    }
+
+    // Whether congestion may throw this frame away to make room for another. Tracked frames are never evicted, nor
+    // are a CATCH_UP room's: its cursor has already moved past them, so nothing would replay them.
+    public boolean isEvictable() {
+        return !isTracked() && policy != BackpressurePolicy.CATCH_UP;
+    }
+
+    public SharedFrame retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+        if (webSocketFrame != null) {
+            FramePool.release(webSocketFrame);
+        }
+    }
+
+    // Called by transports once the bytes have reached the client's socket, which may be after release()
+    public void written() {
+        if (onWritten != null) {
+            onWritten.run();
+        }
+    }
+
+    // Called wherever the frame is given up before reaching a transport
+    public void dropped() {
+        if (onDropped != null) {
+            onDropped.run();
+        }
+    }
+
+    // Encodes straight into a pooled direct buffer on first use; the caller must hold a reference
+    public ByteBuffer webSocketSlice() {
+        ByteBuffer frame = webSocketFrame;
+        if (frame == null) {
+            synchronized (this) {
+                frame = webSocketFrame;
+                if (frame == null) {
+                    frame = encodeWebSocket();
+                    webSocketFrame = frame;
+                }
+            }
+        }
+        return frame.asReadOnlyBuffer();
+    }
+
+    private ByteBuffer encodeWebSocket() {
+        String text = text();
+        int length = MessageHistory.utf8Length(text);
+        int header = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+        ByteBuffer frame = FramePool.acquire(header + length);
+        frame.put((byte) (0x80 | OP_TEXT));
+        if (header == 2) {
+            frame.put((byte) length);
+        } else if (header == 4) {
+            frame.put((byte) 126).putShort((short) length);
+        } else {
+            frame.put((byte) 127).putLong(length);
+        }
+        StandardCharsets.UTF_8.newEncoder().encode(CharBuffer.wrap(text), frame, true);
+        return frame.flip();
+    }
+}
+
+// Immutable chat message. Rooms keep and log these; text is only rendered when a transport needs it.
+final class ChatMessage {
+    enum Kind { CHAT, JOINED, LEFT, PRIVATE, NOTICE }
+
+    // Leads every encoded payload; log records written before messages were structured hold bare UTF-8 text
+    private static final byte FORMAT_MARKER = 0;
+
+    private final Kind kind;
+    private final String roomId;
+    private final long sequence;
+    private final long timestamp;
+    private final int senderId;
+    // User ids are recycled, so names are kept for rendering after the users are gone
+    private final String senderName;
+    private final String recipientName;
+    private final byte[] body;
+
+    private ChatMessage(Kind kind, String roomId, long sequence, long timestamp, int senderId,
+            String senderName, String recipientName, byte[] body) {
+        this.kind = kind;
+        this.roomId = roomId;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.senderId = senderId;
+        this.senderName = senderName;
+        this.recipientName = recipientName;
+        this.body = body;
+    }
+
+    public static ChatMessage chat(String roomId, long sequence, long timestamp, User sender, byte[] body) {
+        return new ChatMessage(Kind.CHAT, roomId, sequence, timestamp, sender.getId(), sender.getUsername(), null, body);
+    }
+
+    public static ChatMessage joined(String roomId, long sequence, long timestamp, User user) {
+        return new ChatMessage(Kind.JOINED, roomId, sequence, timestamp, user.getId(), user.getUsername(), null, new byte[0]);
+    }
+
+    public static ChatMessage left(String roomId, long sequence, long timestamp, User user) {
+        return new ChatMessage(Kind.LEFT, roomId, sequence, timestamp, user.getId(), user.getUsername(), null, new byte[0]);
+    }
+
+    // Direct messages belong to no room; their sequence is the recipient's inbox position, or -1 for the sender's copy
+    public static ChatMessage direct(User from, String recipientName, long sequence, long timestamp, byte[] body) {
+        return new ChatMessage(Kind.PRIVATE, null, sequence, timestamp, from.getId(), from.getUsername(), recipientName, body);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public String getSenderName() {
+        return senderName;
+    }
+
+    public String text() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    // Approximate footprint used for history retention
+    public int sizeBytes() {
+        return body.length + (senderName == null ? 0 : senderName.length());
+    }
+
+    public String render() {
+        switch (kind) {
+            case CHAT:
+                return senderName + ": " + text();
+            case JOINED:
+                return senderName + " has joined the chat.";
+            case LEFT:
+                return senderName + " has left the chat.";
+            case PRIVATE:
+                return "(Private) " + senderName + " to " + recipientName + ": " + text();
+            default:
+                return text();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return render();
+    }
+
+    // Log payload: marker, kind, sender id, sender name and body; room, sequence and timestamp live in the record header
+    public byte[] encode() {
+        byte[] name = senderName == null ? new byte[0] : senderName.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 1 + 4 + 2 + name.length + body.length)
+                .put(FORMAT_MARKER)
+                .put((byte) kind.ordinal())
+                .putInt(senderId)
+                .putShort((short) name.length)
+                .put(name)
+                .put(body)
+                .array();
+    }
+
+    public static ChatMessage decode(String roomId, long sequence, long timestamp, byte[] payload) {
+        return decode(roomId, null, sequence, timestamp, payload);
+    }
+
+    // Inbox logs hold one recipient's private messages, so the recipient comes from the log rather than the payload
+    public static ChatMessage decode(String roomId, String recipientName, long sequence, long timestamp, byte[] payload) {
+        if (payload.length < 8 || payload[0] != FORMAT_MARKER) {
+            return new ChatMessage(Kind.NOTICE, roomId, sequence, timestamp, -1, null, null, payload);
+        }
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        in.get();
+        Kind kind = Kind.values()[in.get()];
+        int senderId = in.getInt();
+        byte[] name = new byte[in.getShort() & 0xFFFF];
+        in.get(name);
+        byte[] body = new byte[in.remaining()];
+        in.get(body);
+        return new ChatMessage(kind, roomId, sequence, timestamp, senderId,
+                name.length == 0 ? null : new String(name, StandardCharsets.UTF_8), recipientName, body);
+    }
+}
+
+// Retention limits for a room's in-memory history
+class RetentionPolicy {
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    public RetentionPolicy(int maxMessages, long maxBytes, long maxAgeMillis) {
+        if (maxMessages <= 0 || maxBytes <= 0 || maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("Retention limits must be positive");
+        }
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public static RetentionPolicy fromSystemProperties() {
+        return new RetentionPolicy(
+                Integer.getInteger("chat.history.maxMessages", 1000),
+                Long.getLong("chat.history.maxBytes", 1L << 20),
+                Long.getLong("chat.history.maxAgeMillis", TimeUnit.DAYS.toMillis(1)));
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+}
+
+// One page of history; pass getFirstSequence() back as the cursor to fetch the page before it
+class HistoryPage {
+    private final List<ChatMessage> messages;
+    private final long firstSequence;
+    private final boolean hasMore;
+
+    public HistoryPage(List<ChatMessage> messages, long firstSequence, boolean hasMore) {
+        this.messages = messages;
+        this.firstSequence = firstSequence;
+        this.hasMore = hasMore;
+    }
+
+    public List<ChatMessage> getMessages() {
+        return messages;
+    }
+
+    public long getFirstSequence() {
+        return firstSequence;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+}
+
+// Fixed-capacity ring buffer; appends overwrite the oldest slot instead of growing
+class MessageHistory {
+    private final RetentionPolicy retention;
+    private final ChatMessage[] messages;
+    private int head;
+    private int size;
+    private long bytes;
+    private long nextSequence;
+
+    public MessageHistory(RetentionPolicy retention, long firstSequence) {
+        this.retention = retention;
+        this.nextSequence = firstSequence;
+        int capacity = retention.getMaxMessages();
+        messages = new ChatMessage[capacity];
+    }
+
+    // The message should carry nextSequence(); positions in the ring are assigned in append order
+    public void append(ChatMessage message) {
+        int messageBytes = message.sizeBytes();
+        evictExpired(message.getTimestamp());
+        while (size > 0 && (size == messages.length || bytes + messageBytes > retention.getMaxBytes())) {
+            evictOldest();
+        }
+        messages[(head + size) % messages.length] = message;
+        size++;
+        bytes += messageBytes;
+        nextSequence++;
+    }
+
+    // Visits at most the newest `limit` messages posted at or after sinceMillis, oldest first
+    public void forEachRecent(int limit, long sinceMillis, Consumer<ChatMessage> action) {
+        evictExpired(System.currentTimeMillis());
+        int start = Math.max(0, size - limit);
+        while (start < size && messages[slot(start)].getTimestamp() < sinceMillis) {
+            start++;
+        }
+        for (int i = start; i < size; i++) {
+            action.accept(messages[slot(i)]);
+        }
+    }
+
+    // Returns up to `limit` messages with sequence numbers below beforeSequence, oldest first
+    public HistoryPage page(long beforeSequence, int limit) {
+        evictExpired(System.currentTimeMillis());
+        long first = firstSequence();
+        long end = Math.min(beforeSequence, nextSequence);
+        long start = Math.max(first, end - limit);
+        List<ChatMessage> page = new ArrayList<>();
+        for (long sequence = start; sequence < end; sequence++) {
+            page.add(messages[slot((int) (sequence - first))]);
+        }
+        return new HistoryPage(page, start, start > first);
+    }
+
+    public long firstSequence() {
+        return nextSequence - size;
+    }
+
+    public long nextSequence() {
+        return nextSequence;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long byteSize() {
+        return bytes;
+    }
+
+    private int slot(int offset) {
+        return (head + offset) % messages.length;
+    }
+
+    private void evictExpired(long now) {
+        long cutoff = now - retention.getMaxAgeMillis();
+        while (size > 0 && messages[head].getTimestamp() < cutoff) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        bytes -= messages[head].sizeBytes();
+        messages[head] = null;
+        head = (head + 1) % messages.length;
+        size--;
+    }
+
+    // Counts encoded bytes without materialising a byte[] per message
+    static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
+
+// A message as persisted in a room log
+class LogRecord {
+    private final long sequence;
+    private final long timestamp;
+    private final byte[] payload;
+
+    public LogRecord(long sequence, long timestamp, byte[] payload) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.payload = payload;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public ChatMessage toMessage(String roomId) {
+        return ChatMessage.decode(roomId, sequence, timestamp, payload);
+    }
+
+    public ChatMessage toDirectMessage(String recipientName) {
+        return ChatMessage.decode(null, recipientName, sequence, timestamp, payload);
+    }
+}
+
+// Append-only room log split into fixed-size memory-mapped segments named by their first sequence
+class RoomLog {
+    // length, crc, sequence, timestamp; a zero length marks the end of written data
+    static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+    // One sparse index entry per this many log bytes
+    static final int INDEX_INTERVAL_BYTES = 4096;
+    static final int INDEX_ENTRY_BYTES = 8 + 4;
+
+    private final String roomId;
+    private final Path directory;
+    private final Path archiveDirectory;
+    private final int segmentBytes;
+    private final NavigableMap<Long, LogSegment> segments = new TreeMap<>();
+    private final List<Segment> unflushed = new ArrayList<>();
+    // Read-held while mapped bytes are used outside the monitor (msync, compaction copies);
+    // write-held to unmap, so no one touches a mapping after it is released
+    private final ReadWriteLock mappings = new ReentrantReadWriteLock();
+    private Segment active;
+    private long nextSequence;
+    // Holders registered through MessageStore; only changed under the store's map entry for this log
+    private int references;
+    private boolean closed;
+    // Time the constructor took to find the segments and recover the tail, for startup metrics
+    private final long recoveryNanos;
+
+    // Only the last segment is mapped and scanned here; sealed segments stay unmapped until read
+    public RoomLog(String roomId, Path directory, int segmentBytes) throws IOException {
+        long started = System.nanoTime();
+        this.roomId = roomId;
+        this.directory = directory;
+        this.archiveDirectory = directory.resolve("archive");
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(archiveDirectory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(archiveDirectory, "*.log.gz")) {
+            for (Path file : files) {
+                ArchivedSegment archived = ArchivedSegment.open(file);
+                segments.put(archived.baseSequence(), archived);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : files) {
+                long base = Long.parseLong(file.getFileName().toString().replace(".log", ""));
+                segments.put(base, new Segment(file, base, segmentBytes));
+            }
+        }
+        LogSegment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (last instanceof Segment) {
+            active = (Segment) last;
+            nextSequence = active.recoverTail();
+        } else {
+            long[] next = {0};
+            if (last != null) {
+                long from = ((ArchivedSegment) last).lastBlockSequence();
+                last.scan(from, Long.MAX_VALUE, record -> next[0] = record.getSequence() + 1);
+            }
+            nextSequence = next[0];
+            active = createSegment(nextSequence);
+        }
+        recoveryNanos = System.nanoTime() - started;
+    }
+
+    public long recoveryNanos() {
+        return recoveryNanos;
+    }
+
+    int retain() {
+        return ++references;
+    }
+
+    int release() {
+        return --references;
+    }
+
+    public synchronized long append(ChatMessage message) throws IOException {
+        if (closed) {
+            throw new IOException("Log for " + roomId + " is closed");
+        }
+        long sequence = message.getSequence();
+        long timestamp = message.getTimestamp();
+        byte[] payload = message.encode();
+        if (HEADER_BYTES + payload.length + 4 > segmentBytes) {
+            throw new IllegalArgumentException("Message larger than a log segment");
+        }
+        if (!active.hasRoom(payload.length)) {
+            active.seal();
+            unflushed.add(active);
+            active = createSegment(sequence);
+        }
+        active.write(sequence, timestamp, payload);
+        if (!unflushed.contains(active)) {
+            unflushed.add(active);
+        }
+        nextSequence = sequence + 1;
+        return sequence;
+    }
+
+    // Visits records in [fromSequence, toSequence) in order
+    public synchronized void read(long fromSequence, long toSequence, Consumer<LogRecord> action) {
+        if (closed) {
+            return;
+        }
+        Long start = segments.floorKey(fromSequence);
+        long[] emitted = {fromSequence};
+        // Guards against records duplicated by a merge interrupted between rename and delete
+        Consumer<LogRecord> deduplicated = record -> {
+            if (record.getSequence() >= emitted[0]) {
+                emitted[0] = record.getSequence() + 1;
+                action.accept(record);
+            }
+        };
+        for (LogSegment segment : segments.tailMap(start == null ? fromSequence : start, true).values()) {
+            if (segment.baseSequence() >= toSequence || !segment.scan(emitted[0], toSequence, deduplicated)) {
+                return;
+            }
+        }
+    }
+
+    public HistoryPage page(long beforeSequence, int limit) {
+        long end = Math.min(beforeSequence, nextSequence());
+        long start = Math.max(firstSequence(), end - limit);
+        List<ChatMessage> messages = new ArrayList<>();
+        read(start, end, record -> messages.add(record.toMessage(roomId)));
+        return new HistoryPage(messages, start, start > firstSequence());
+    }
+
+    public synchronized long firstSequence() {
+        return segments.firstKey();
+    }
+
+    public synchronized long nextSequence() {
+        return nextSequence;
+    }
+
+    // Group commit: one msync per dirty segment covers every append since the last flush
+    public void flush() {
+        mappings.readLock().lock();
+        try {
+            List<Segment> dirty;
+            synchronized (this) {
+                if (closed || unflushed.isEmpty()) {
+                    return;
+                }
+                dirty = new ArrayList<>(unflushed);
+                unflushed.clear();
+            }
+            for (Segment segment : dirty) {
+                segment.force();
+            }
+        } finally {
+            mappings.readLock().unlock();
+        }
+    }
+
+    // Flushes and unmaps every segment; reads after this see nothing and appends fail
+    public void close() throws IOException {
+        mappings.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                for (Segment segment : unflushed) {
+                    segment.force();
+                }
+                unflushed.clear();
+                for (LogSegment segment : segments.values()) {
+                    segment.close();
+                }
+            }
+        } finally {
+            mappings.writeLock().unlock();
+        }
+    }
+
+    // Deletes expired segments, merges runs of small sealed segments and archives cold ones
+    public void compact(long now, long retentionMillis, long coldAfterMillis) throws IOException {
+        mappings.writeLock().lock();
+        try {
+            synchronized (this) {
+                Iterator<LogSegment> oldest = segments.values().iterator();
+                while (!closed && oldest.hasNext()) {
+                    LogSegment segment = oldest.next();
+                    if (segment == active || segment.lastTimestamp() >= now - retentionMillis) {
+                        break;
+                    }
+                    unflushed.remove(segment);
+                    segment.close();
+                    segment.delete();
+                    oldest.remove();
+                }
+                // Sealed segments mapped by a read since the last run are let go once they have been synced
+                for (LogSegment segment : segments.values()) {
+                    if (segment != active && !unflushed.contains(segment)) {
+                        segment.close();
+                    }
+                }
+            }
+        } finally {
+            mappings.writeLock().unlock();
+        }
+        while (mergeSmallSegments()) {
+            // Keep merging until no adjacent pair fits in one segment
+        }
+        List<Segment> cold = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            for (LogSegment segment : segments.values()) {
+                if (segment instanceof Segment && segment != active && segment.lastTimestamp() < now - coldAfterMillis) {
+                    cold.add((Segment) segment);
+                }
+            }
+        }
+        for (Segment segment : cold) {
+            archive(segment);
+        }
+    }
+
+    // Sealed segments are immutable, so their bytes are copied outside the lock and swapped in under it
+    private boolean mergeSmallSegments() throws IOException {
+        List<Segment> run = new ArrayList<>();
+        long runBytes = 0;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            for (LogSegment segment : segments.values()) {
+                int end = segment instanceof Segment && segment != active ? ((Segment) segment).endPosition() : -1;
+                if (end < 0 || end > segmentBytes / 2 || runBytes + end + 4 > segmentBytes) {
+                    if (run.size() >= 2) {
+                        break;
+                    }
+                    run.clear();
+                    runBytes = 0;
+                    if (end < 0 || end > segmentBytes / 2) {
+                        continue;
+                    }
+                }
+                run.add((Segment) segment);
+                runBytes += end;
+            }
+        }
+        if (run.size() < 2) {
+            return false;
+        }
+        Segment first = run.get(0);
+        Path merged = directory.resolve(first.file.getFileName() + ".compacting");
+        mappings.readLock().lock();
+        try (FileChannel out = FileChannel.open(merged, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+            }
+            for (Segment segment : run) {
+                out.write(segment.contents());
+            }
+            out.force(true);
+        } finally {
+            mappings.readLock().unlock();
+        }
+        mappings.writeLock().lock();
+        try {
+            swapMerged(run, merged);
+        } finally {
+            mappings.writeLock().unlock();
+        }
+        return true;
+    }
+
+    private synchronized void swapMerged(List<Segment> run, Path merged) throws IOException {
+        Segment first = run.get(0);
+        if (closed) {
+            Files.deleteIfExists(merged);
+            return;
+        }
+        for (Segment segment : run) {
+            unflushed.remove(segment);
+            segment.close();
+            segments.remove(segment.baseSequence);
+        }
+        Files.move(merged, first.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(first.indexFile);
+        for (Segment segment : run.subList(1, run.size())) {
+            segment.delete();
+        }
+        Segment replacement = new Segment(first.file, first.baseSequence, segmentBytes);
+        replacement.recoverTail();
+        replacement.seal();
+        replacement.force();
+        replacement.close();
+        segments.put(replacement.baseSequence, replacement);
+    }
+
+    private void archive(Segment segment) throws IOException {
+        ByteBuffer contents;
+        long lastTimestamp;
+        Path target;
+        mappings.readLock().lock();
+        try {
+            synchronized (this) {
+                if (closed || segments.get(segment.baseSequence) != segment) {
+                    return;
+                }
+                contents = segment.contents();
+                lastTimestamp = segment.lastTimestamp();
+            }
+            target = ArchivedSegment.path(archiveDirectory, segment.baseSequence, lastTimestamp);
+            ArchivedSegment.write(contents, target);
+        } finally {
+            mappings.readLock().unlock();
+        }
+        mappings.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (closed) {
+                    // The gzip holds the same records; the next open picks it up alongside the segment
+                    return;
+                }
+                unflushed.remove(segment);
+                segment.close();
+                segment.delete();
+                segments.put(segment.baseSequence, new ArchivedSegment(target, segment.baseSequence, lastTimestamp));
+            }
+        } finally {
+            mappings.writeLock().unlock();
+        }
+    }
+
+    // Releases a mapping now rather than whenever the buffer is collected; the buffer must not be touched afterwards
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            java.lang.reflect.Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Left to the garbage collector
+        }
+    }
+
+    private Segment createSegment(long baseSequence) throws IOException {
+        Path file = directory.resolve(String.format("%020d.log", baseSequence));
+        Segment segment = new Segment(file, baseSequence, segmentBytes);
+        segments.put(baseSequence, segment);
+        return segment;
+    }
+
+    private interface LogSegment {
+        long baseSequence();
+
+        // Returns false once a record at or past toSequence is reached
+        boolean scan(long fromSequence, long toSequence, Consumer<LogRecord> action);
+
+        long lastTimestamp();
+
+        void close() throws IOException;
+
+        void delete() throws IOException;
+    }
+
+    private static class Segment implements LogSegment {
+        final Path file;
+        final Path indexFile;
+        final long baseSequence;
+        final int segmentBytes;
+        final CRC32 crc = new CRC32();
+        FileChannel channel;
+        MappedByteBuffer buffer;
+        FileChannel indexChannel;
+        MappedByteBuffer index;
+        int indexEntries;
+        int writePosition;
+        long lastTimestamp;
+        int sealedEnd = -1;
+        long sealedLastTimestamp;
+
+        Segment(Path file, long baseSequence, int segmentBytes) {
+            this.file = file;
+            this.indexFile = file.resolveSibling(file.getFileName().toString().replace(".log", ".index"));
+            this.baseSequence = baseSequence;
+            this.segmentBytes = segmentBytes;
+        }
+
+        MappedByteBuffer buffer() {
+            if (buffer == null) {
+                try {
+                    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentBytes));
+                    indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    long indexBytes = (long) (buffer.capacity() / INDEX_INTERVAL_BYTES + 1) * INDEX_ENTRY_BYTES;
+                    index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(indexChannel.size(), indexBytes));
+                    // Position 0 is never indexed, so a zero position terminates the entries; the last slot is the seal
+                    while ((indexEntries + 2) * INDEX_ENTRY_BYTES <= index.capacity() && indexPosition(indexEntries) != 0) {
+                        indexEntries++;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot map log segment " + file, e);
+                }
+            }
+            return buffer;
+        }
+
+        boolean hasRoom(int payloadLength) {
+            // Always leave space for the zero-length end marker
+            return writePosition + HEADER_BYTES + payloadLength + 4 <= buffer().capacity();
+        }
+
+        void write(long sequence, long timestamp, byte[] payload) {
+            MappedByteBuffer buffer = buffer();
+            crc.reset();
+            crc.update(payload);
+            int position = writePosition;
+            buffer.putInt(position + 4, (int) crc.getValue());
+            buffer.putLong(position + 8, sequence);
+            buffer.putLong(position + 16, timestamp);
+            buffer.put(position + HEADER_BYTES, payload);
+            writePosition = position + HEADER_BYTES + payload.length;
+            buffer.putInt(writePosition, 0);
+            // Publish the length last so a torn write leaves a zero or CRC-failing record
+            buffer.putInt(position, payload.length);
+            lastTimestamp = timestamp;
+            maybeIndex(sequence, position);
+        }
+
+        // Records the used length and newest timestamp in the index's last slot, so compaction and restarts
+        // can size up a sealed segment without mapping or scanning it
+        void seal() {
+            buffer();
+            sealedEnd = writePosition;
+            sealedLastTimestamp = lastTimestamp;
+            writeSeal();
+        }
+
+        private void writeSeal() {
+            int slot = index.capacity() - INDEX_ENTRY_BYTES;
+            if (indexEntries * INDEX_ENTRY_BYTES < slot) {
+                index.putLong(slot, sealedLastTimestamp);
+                index.putInt(slot + 8, sealedEnd);
+            }
+        }
+
+        private boolean readSeal() {
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < INDEX_ENTRY_BYTES) {
+                    return false;
+                }
+                ByteBuffer seal = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+                channel.read(seal, size - INDEX_ENTRY_BYTES);
+                if (seal.getInt(8) <= 0) {
+                    return false;
+                }
+                sealedLastTimestamp = seal.getLong(0);
+                sealedEnd = seal.getInt(8);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        // Finds the end of valid data after a restart by scanning only from the last indexed record
+        long recoverTail() {
+            MappedByteBuffer buffer = buffer();
+            while (indexEntries > 0) {
+                LogRecord record = readAt(indexPosition(indexEntries - 1));
+                if (record != null && record.getSequence() == indexSequence(indexEntries - 1)) {
+                    break;
+                }
+                // Entry points past a torn tail; drop it
+                indexEntries--;
+                index.putInt(indexEntries * INDEX_ENTRY_BYTES + 8, 0);
+            }
+            int position = indexEntries == 0 ? 0 : indexPosition(indexEntries - 1);
+            long next = baseSequence;
+            while (true) {
+                LogRecord record = readAt(position);
+                if (record == null) {
+                    break;
+                }
+                maybeIndex(record.getSequence(), position);
+                next = record.getSequence() + 1;
+                lastTimestamp = record.getTimestamp();
+                position += HEADER_BYTES + buffer.getInt(position);
+            }
+            writePosition = position;
+            if (position + 4 <= buffer.capacity()) {
+                buffer.putInt(position, 0);
+            }
+            return next;
+        }
+
+        @Override
+        public long baseSequence() {
+            return baseSequence;
+        }
+
+        @Override
+        public boolean scan(long fromSequence, long toSequence, Consumer<LogRecord> action) {
+            MappedByteBuffer buffer = buffer();
+            int position = seek(fromSequence);
+            while (true) {
+                LogRecord record = readAt(position);
+                if (record == null) {
+                    return true;
+                }
+                if (record.getSequence() >= toSequence) {
+                    return false;
+                }
+                if (record.getSequence() >= fromSequence) {
+                    action.accept(record);
+                }
+                position += HEADER_BYTES + buffer.getInt(position);
+            }
+        }
+
+        // Binary search for the last indexed record at or before the sequence
+        private int seek(long sequence) {
+            int low = 0;
+            int high = indexEntries - 1;
+            int position = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexSequence(mid) <= sequence) {
+                    position = indexPosition(mid);
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return position;
+        }
+
+        private void maybeIndex(long sequence, int position) {
+            int lastIndexed = indexEntries == 0 ? 0 : indexPosition(indexEntries - 1);
+            if (position - lastIndexed >= INDEX_INTERVAL_BYTES
+                    && (indexEntries + 3) * INDEX_ENTRY_BYTES <= index.capacity()) {
+                index.putLong(indexEntries * INDEX_ENTRY_BYTES, sequence);
+                index.putInt(indexEntries * INDEX_ENTRY_BYTES + 8, position);
+                indexEntries++;
+            }
+        }
+
+        private long indexSequence(int entry) {
+            return index.getLong(entry * INDEX_ENTRY_BYTES);
+        }
+
+        private int indexPosition(int entry) {
+            return index.getInt(entry * INDEX_ENTRY_BYTES + 8);
+        }
+
+        LogRecord readAt(int position) {
+            MappedByteBuffer buffer = buffer();
+            if (position + HEADER_BYTES > buffer.capacity()) {
+                return null;
+            }
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_BYTES + length > buffer.capacity()) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(position + HEADER_BYTES, payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                return null;
+            }
+            return new LogRecord(buffer.getLong(position + 8), buffer.getLong(position + 16), payload);
+        }
+
+        // Used bytes of a sealed segment: from its seal, or for segments written before seals existed,
+        // by scanning forward from its last index entry and then sealing it
+        int endPosition() {
+            if (sealedEnd < 0 && (buffer != null || !readSeal())) {
+                MappedByteBuffer buffer = buffer();
+                int position = indexEntries == 0 ? 0 : indexPosition(indexEntries - 1);
+                while (true) {
+                    LogRecord record = readAt(position);
+                    if (record == null) {
+                        break;
+                    }
+                    sealedLastTimestamp = record.getTimestamp();
+                    position += HEADER_BYTES + buffer.getInt(position);
+                }
+                sealedEnd = position;
+                writeSeal();
+            }
+            return sealedEnd;
+        }
+
+        @Override
+        public long lastTimestamp() {
+            endPosition();
+            return sealedLastTimestamp;
+        }
+
+        ByteBuffer contents() {
+            ByteBuffer contents = buffer().duplicate();
+            contents.position(0).limit(endPosition());
+            return contents;
+        }
+
+        void force() {
+            if (buffer != null) {
+                buffer.force();
+                index.force();
+            }
+        }
+
+        // Unmaps as well as closing, so a sealed segment costs nothing until it is read again
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                unmap(buffer);
+                unmap(index);
+                buffer = null;
+                index = null;
+                channel.close();
+                indexChannel.close();
+                channel = null;
+                indexChannel = null;
+            }
+        }
+
+        @Override
+        public void delete() throws IOException {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    // Cold tier: a sealed segment's used bytes as a run of independently gzipped blocks, named by first sequence
+    // and newest timestamp. A sidecar index maps each block's first sequence to its file offset, so a read
+    // decompresses only from the block holding its start instead of from the top of the file.
+    private static class ArchivedSegment implements LogSegment {
+        static final int BLOCK_BYTES = 64 * 1024;
+
+        final Path file;
+        final Path blockIndexFile;
+        final long baseSequence;
+        final long lastTimestamp;
+        long[] blockSequences;
+        long[] blockOffsets;
+
+        ArchivedSegment(Path file, long baseSequence, long lastTimestamp) {
+            this.file = file;
+            this.blockIndexFile = file.resolveSibling(file.getFileName() + ".idx");
+            this.baseSequence = baseSequence;
+            this.lastTimestamp = lastTimestamp;
+        }
+
+        static Path path(Path archiveDirectory, long baseSequence, long lastTimestamp) {
+            return archiveDirectory.resolve(String.format("%020d-%d.log.gz", baseSequence, lastTimestamp));
+        }
+
+        static ArchivedSegment open(Path file) {
+            String[] parts = file.getFileName().toString().replace(".log.gz", "").split("-");
+            return new ArchivedSegment(file, Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        }
+
+        // Blocks end on record boundaries; the index goes into place before the archive it describes
+        static void write(ByteBuffer contents, Path target) throws IOException {
+            Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+            Path blockIndex = target.resolveSibling(target.getFileName() + ".idx");
+            Path temporaryIndex = blockIndex.resolveSibling(blockIndex.getFileName() + ".tmp");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary));
+                 DataOutputStream index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryIndex)))) {
+                long offset = 0;
+                while (contents.hasRemaining()) {
+                    int start = contents.position();
+                    int end = start;
+                    while (end < contents.limit() && (end == start || end - start < BLOCK_BYTES)) {
+                        end += HEADER_BYTES + contents.getInt(end);
+                    }
+                    byte[] raw = new byte[end - start];
+                    contents.get(raw);
+                    ByteArrayOutputStream block = new ByteArrayOutputStream(raw.length / 2);
+                    try (OutputStream gzip = new GZIPOutputStream(block)) {
+                        gzip.write(raw);
+                    }
+                    index.writeLong(ByteBuffer.wrap(raw).getLong(8));
+                    index.writeLong(offset);
+                    block.writeTo(out);
+                    offset += block.size();
+                }
+            }
+            Files.move(temporaryIndex, blockIndex, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Archives written as a single gzip stream have no block index and are read as one block
+        private void loadBlocks() {
+            if (blockSequences != null) {
+                return;
+            }
+            try {
+                byte[] entries = Files.exists(blockIndexFile) ? Files.readAllBytes(blockIndexFile) : new byte[0];
+                ByteBuffer in = ByteBuffer.wrap(entries);
+                int blocks = Math.max(1, entries.length / 16);
+                blockSequences = new long[blocks];
+                blockOffsets = new long[blocks];
+                blockSequences[0] = baseSequence;
+                for (int i = 0; in.remaining() >= 16; i++) {
+                    blockSequences[i] = in.getLong();
+                    blockOffsets[i] = in.getLong();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read block index " + blockIndexFile, e);
+            }
+        }
+
+        long lastBlockSequence() {
+            loadBlocks();
+            return blockSequences[blockSequences.length - 1];
+        }
+
+        @Override
+        public long baseSequence() {
+            return baseSequence;
+        }
+
+        @Override
+        public long lastTimestamp() {
+            return lastTimestamp;
+        }
+
+        // Concatenated gzip members read as one stream, so the scan runs on from its starting block
+        @Override
+        public boolean scan(long fromSequence, long toSequence, Consumer<LogRecord> action) {
+            loadBlocks();
+            int block = Arrays.binarySearch(blockSequences, fromSequence);
+            block = block >= 0 ? block : Math.max(0, -block - 2);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                    Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ).position(blockOffsets[block])), 8192)))) {
+                CRC32 crc = new CRC32();
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        return true;
+                    }
+                    int checksum = in.readInt();
+                    long sequence = in.readLong();
+                    long timestamp = in.readLong();
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if (length <= 0 || (int) crc.getValue() != checksum) {
+                        return true;
+                    }
+                    if (sequence >= toSequence) {
+                        return false;
+                    }
+                    if (sequence >= fromSequence) {
+                        action.accept(new LogRecord(sequence, timestamp, payload));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read archived segment " + file, e);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void delete() throws IOException {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(blockIndexFile);
+        }
+    }
+}
+
+// Owns every room log and the background group-commit flusher
+class MessageStore {
+    private static MessageStore instance;
+
+    private final Path root;
+    private final int segmentBytes;
+    private final ConcurrentMap<String, RoomLog> logs = new ConcurrentHashMap<>();
+    // Per-user private-message logs, kept under a directory name no room id can encode to
+    private final ConcurrentMap<String, RoomLog> inboxes = new ConcurrentHashMap<>();
+    private final int inboxSegmentBytes = Integer.getInteger("chat.inbox.segmentBytes", 1 << 20);
+    private final ScheduledExecutorService flusher;
+    private final ScheduledExecutorService compactor;
+    private final long retentionMillis;
+    private final long coldAfterMillis;
+    private boolean closed;
+
+    private MessageStore(Path root, int segmentBytes, long flushIntervalMillis,
+                         long compactIntervalMillis, long retentionMillis, long coldAfterMillis) {
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        this.retentionMillis = retentionMillis;
+        this.coldAfterMillis = coldAfterMillis;
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "log-compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, compactIntervalMillis, compactIntervalMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-shutdown"));
+    }
+
+    public static synchronized MessageStore getInstance() {
+        if (instance == null) {
+            instance = new MessageStore(Paths.get(System.getProperty("chat.data.dir", "chat-data")),
+                    Integer.getInteger("chat.log.segmentBytes", 16 << 20),
+                    Long.getLong("chat.log.flushIntervalMillis", 5L),
+                    Long.getLong("chat.log.compactIntervalMillis", TimeUnit.MINUTES.toMillis(1)),
+                    Long.getLong("chat.log.retentionMillis", TimeUnit.DAYS.toMillis(30)),
+                    Long.getLong("chat.log.coldAfterMillis", TimeUnit.DAYS.toMillis(1)));
+        }
+        return instance;
+    }
+
+    // Logs are reference counted: a room being torn down and its replacement can briefly share one,
+    // and the last release closes and unmaps it
+    public RoomLog acquireLog(String roomId) {
+        return acquire(logs, roomId, root.resolve(directoryName(roomId)), segmentBytes);
+    }
+
+    public void releaseLog(String roomId, RoomLog log) {
+        release(logs, roomId, log);
+    }
+
+    public RoomLog acquireInbox(String username) {
+        return acquire(inboxes, username, inboxDirectory(username), inboxSegmentBytes);
+    }
+
+    public void releaseInbox(String username, RoomLog log) {
+        release(inboxes, username, log);
+    }
+
+    public boolean hasLog(String roomId) {
+        return Files.isDirectory(root.resolve(directoryName(roomId)));
+    }
+
+    private static RoomLog acquire(ConcurrentMap<String, RoomLog> open, String key, Path directory, int segmentBytes) {
+        return open.compute(key, (name, log) -> {
+            if (log == null) {
+                try {
+                    log = new RoomLog(name, directory, segmentBytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot open log " + directory, e);
+                }
+            }
+            log.retain();
+            return log;
+        });
+    }
+
+    // Closes under the map entry, so a concurrent acquire opens a fresh log only after this one is gone
+    private static void release(ConcurrentMap<String, RoomLog> open, String key, RoomLog log) {
+        open.computeIfPresent(key, (name, current) -> {
+            if (current != log || log.release() > 0) {
+                return current;
+            }
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close log " + name + ": " + e.getMessage());
+            }
+            return null;
+        });
+    }
+
+    public Path inboxDirectory(String username) {
+        return root.resolve(".inboxes").resolve(directoryName(username));
+    }
+
+    // Room ids that have a log on disk, decoded from their directory names
+    public List<String> storedRoomIds() throws IOException {
+        List<String> roomIds = new ArrayList<>();
+        if (!Files.isDirectory(root)) {
+            return roomIds;
+        }
+        DirectoryStream.Filter<Path> rooms = path -> Files.isDirectory(path) && !path.getFileName().toString().startsWith(".");
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, rooms)) {
+            for (Path directory : directories) {
+                roomIds.add(roomId(directory.getFileName().toString()));
+            }
+        }
+        return roomIds;
+    }
+
+    public void flush() {
+        for (RoomLog log : logs.values()) {
+            log.flush();
+        }
+        for (RoomLog inbox : inboxes.values()) {
+            inbox.flush();
+        }
+    }
+
+    public void compact() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, RoomLog> entry : logs.entrySet()) {
+            try {
+                entry.getValue().compact(now, retentionMillis, coldAfterMillis);
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Compaction failed for room " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+        for (Map.Entry<String, RoomLog> entry : inboxes.entrySet()) {
+            try {
+                entry.getValue().compact(now, retentionMillis, coldAfterMillis);
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Compaction failed for the inbox of " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        compactor.shutdownNow();
+        flusher.shutdown();
+        for (RoomLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close room log: " + e.getMessage());
+            }
+        }
+        for (RoomLog inbox : inboxes.values()) {
+            try {
+                inbox.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close inbox: " + e.getMessage());
+            }
+        }
+    }
+
+    // Reversible, filesystem-safe encoding of arbitrary room ids
+    static String directoryName(String roomId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(roomId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String roomId(String directoryName) {
+        return new String(Base64.getUrlDecoder().decode(directoryName), StandardCharsets.UTF_8);
+    }
+}
+
+// Immutable view of a room's member ids taken for one fan-out, read by position range
+abstract class MemberSnapshot {
+    // Chunked snapshots hold ids in arrays of this many, so a write after a snapshot copies one chunk, not the room
+    static final int CHUNK_SHIFT = 10;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    public abstract int size();
+
+    // Visits the members at positions [from, to) in snapshot order
+    public abstract void forEach(int from, int to, IntConsumer action);
+
+    static MemberSnapshot ofChunks(int[][] chunks, int size) {
+        return new MemberSnapshot() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public void forEach(int from, int to, IntConsumer action) {
+                Objects.checkFromToIndex(from, to, size);
+                for (int i = from; i < to; i++) {
+                    action.accept(chunks[i >>> CHUNK_SHIFT][i & (CHUNK_SIZE - 1)]);
+                }
+            }
+        };
+    }
+
+    // The bitmap must not be modified afterwards
+    static MemberSnapshot ofBitmap(RoaringBitmap members, int size) {
+        return new MemberSnapshot() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public void forEach(int from, int to, IntConsumer action) {
+                Objects.checkFromToIndex(from, to, size);
+                members.forEachInRange(from, to, action);
+            }
+        };
+    }
+}
+
+// Set of user ids: dense member array plus an int-keyed position table, so nothing is boxed
+class IntMembershipSet implements RoomMembership {
+    private static final int EMPTY = -1;
+
+    // Member ids by position, in chunks of MemberSnapshot.CHUNK_SIZE; only the first chunk starts small and grows
+    private int[][] chunks = {new int[16]};
+    // The chunk spine of the latest snapshot: a chunk still listed there is shared and copied before it is written
+    private int[][] frozen;
+    // Open-addressing table from member id to its position, sized by the room rather than the highest id
+    private int[] slotIds = emptySlots(32);
+    private int[] slotPositions = new int[32];
+    private int size;
+    private MemberSnapshot snapshot;
+
+    @Override
+    public boolean add(int id) {
+        if (id < 0 || contains(id)) {
+            return false;
+        }
+        if ((size + 1) * 2 > slotIds.length) {
+            rehash(slotIds.length * 2);
+        }
+        ensureCapacity();
+        set(size, id);
+        put(id, size++);
+        return true;
+    }
+
+    // Swap-remove: the last member takes the freed slot
+    @Override
+    public boolean remove(int id) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            return false;
+        }
+        int position = slotPositions[slot];
+        deleteSlot(slot);
+        int last = get(--size);
+        if (last != id) {
+            set(position, last);
+            slotPositions[slotOf(last)] = position;
+        }
+        snapshot = null;
+        // A chunk emptied at the tail is dropped; the first chunk is kept for the next join
+        int chunk = size >>> MemberSnapshot.CHUNK_SHIFT;
+        if ((size & (MemberSnapshot.CHUNK_SIZE - 1)) == 0 && chunk > 0 && chunk < chunks.length) {
+            chunks[chunk] = null;
+        }
+        if (slotIds.length > 32 && size * 8 < slotIds.length) {
+            rehash(slotIds.length / 2);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(int id) {
+        return slotOf(id) >= 0;
+    }
+
+    private static int[] emptySlots(int length) {
+        int[] slots = new int[length];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+
+    private int home(int id) {
+        return (id * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(slotIds.length));
+    }
+
+    private int slotOf(int id) {
+        if (id < 0) {
+            return -1;
+        }
+        int mask = slotIds.length - 1;
+        for (int slot = home(id); slotIds[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (slotIds[slot] == id) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void put(int id, int position) {
+        int mask = slotIds.length - 1;
+        int slot = home(id);
+        while (slotIds[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        slotIds[slot] = id;
+        slotPositions[slot] = position;
+    }
+
+    // Backward-shift deletion keeps every probe chain unbroken without tombstones
+    private void deleteSlot(int slot) {
+        int mask = slotIds.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; slotIds[next] != EMPTY; next = (next + 1) & mask) {
+            int home = home(slotIds[next]);
+            // Move the entry back if its home does not lie cyclically in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                slotIds[hole] = slotIds[next];
+                slotPositions[hole] = slotPositions[next];
+                hole = next;
+            }
+        }
+        slotIds[hole] = EMPTY;
+    }
+
+    private void rehash(int length) {
+        slotIds = emptySlots(length);
+        slotPositions = new int[length];
+        for (int i = 0; i < size; i++) {
+            put(get(i), i);
+        }
+    }
+
+    private int get(int position) {
+        return chunks[position >>> MemberSnapshot.CHUNK_SHIFT][position & (MemberSnapshot.CHUNK_SIZE - 1)];
+    }
+
+    // Copies the target chunk first if the latest snapshot still shares it
+    private void set(int position, int id) {
+        int chunk = position >>> MemberSnapshot.CHUNK_SHIFT;
+        if (frozen != null && chunk < frozen.length && frozen[chunk] == chunks[chunk]) {
+            chunks[chunk] = chunks[chunk].clone();
+        }
+        chunks[chunk][position & (MemberSnapshot.CHUNK_SIZE - 1)] = id;
+        snapshot = null;
+    }
+
+    // Makes room for position size; a regrown array is new and so never shared with a snapshot
+    private void ensureCapacity() {
+        int chunk = size >>> MemberSnapshot.CHUNK_SHIFT;
+        if (chunk == 0) {
+            if (size == chunks[0].length) {
+                chunks[0] = Arrays.copyOf(chunks[0], Math.min(MemberSnapshot.CHUNK_SIZE, size * 2));
+            }
+            return;
+        }
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new int[MemberSnapshot.CHUNK_SIZE];
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Stays valid while the set changes. Taking one copies only the chunk spine, and each later write copies
+    // just the chunk it lands in, so a join or leave after a notice's fan-out costs a chunk rather than the room.
+    @Override
+    public MemberSnapshot snapshot() {
+        if (snapshot == null) {
+            frozen = Arrays.copyOf(chunks, (size + MemberSnapshot.CHUNK_SIZE - 1) >>> MemberSnapshot.CHUNK_SHIFT);
+            snapshot = MemberSnapshot.ofChunks(frozen, size);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public RoaringBitmap asBitmap() {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (int i = 0; i < size; i++) {
+            bitmap.add(get(i));
+        }
+        return bitmap;
+    }
+}
+
+// Single-threaded executors that own rooms: each room id hashes to one loop, which performs all of its mutations
+class RoomLoops {
+    private static final RoomLoops INSTANCE = new RoomLoops(Integer.getInteger("chat.room.loops", Runtime.getRuntime().availableProcessors()));
+
+    private final RoomLoop[] loops;
+
+    private RoomLoops(int count) {
+        loops = new RoomLoop[Math.max(1, count)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new RoomLoop("room-loop-" + i);
+        }
+    }
+
+    public static RoomLoops getInstance() {
+        return INSTANCE;
+    }
+
+    public RoomLoop loopFor(String roomId) {
+        return loops[Math.floorMod(roomId.hashCode() * 0x9E3779B9, loops.length)];
+    }
+
+    // Runs whatever was queued before the call, then stops taking work
+    public void shutdown(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (RoomLoop loop : loops) {
+            loop.shutdown(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+    }
+}
+
+class RoomLoop implements Executor, Runnable {
+    private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    RoomLoop(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+    }
+
+    // Queries wait for their answer; on the loop itself they run inline to avoid deadlocking on our own queue
+    public <T> T call(Supplier<T> query) {
+        if (inLoop()) {
+            return query.get();
+        }
+        return submit(query).join();
+    }
+
+    // For callers that must not block, such as selector threads: the future completes on this loop
+    public <T> CompletableFuture<T> submit(Supplier<T> query) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                result.complete(query.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    // Returns once the loop has stopped, or on timeout
+    void shutdown(long timeoutMillis) {
+        execute(() -> running = false);
+        try {
+            stopped.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Tasks queued behind the stop still run, such as an ingest ring drain that re-queued itself for the rest of the ring
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                runTask(tasks.take());
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                runTask(task);
+            }
+        } catch (InterruptedException e) {
+            // Stopping anyway
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.err.println(thread.getName() + " error: " + e.getMessage());
+        }
+    }
+}
+
+// Multi-producer, single-consumer ring of pre-allocated slots. Producers claim a sequence with one
+// atomic increment and never lock; a drain task on the consumer's executor hands messages on in order.
+class IngestRing {
+    private static final int SPIN_LIMIT = 100;
+
+    interface Handler {
+        void onMessage(User sender, byte[] body);
+    }
+
+    private final User[] senders;
+    private final byte[][] bodies;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Handler handler;
+    private final Executor executor;
+    private final Runnable drainTask = this::drainScheduled;
+    // Highest sequence the pending drain task may consume; later sends get a task queued behind whatever came meanwhile
+    private volatile long drainLimit;
+
+    IngestRing(int capacity, Handler handler, Executor executor) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        senders = new User[size];
+        bodies = new byte[size][];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        mask = size - 1;
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    public void publish(User sender, byte[] body) {
+        long sequence = claimed.getAndIncrement();
+        // Full ring: wait for the consumer rather than allocate or drop
+        for (int spins = 0; sequence - bodies.length >= consumed.get(); spins++) {
+            backOff(spins);
+        }
+        int index = (int) sequence & mask;
+        senders[index] = sender;
+        bodies[index] = body;
+        published.set(index, sequence);
+        schedule();
+    }
+
+    // Consumer side only: drains everything claimed so far, waiting out producers between claim and publish
+    public void drainAll() {
+        drainTo(claimed.get());
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            drainLimit = claimed.get();
+            executor.execute(drainTask);
+        }
+    }
+
+    private void drainScheduled() {
+        drainTo(drainLimit);
+        scheduled.set(false);
+        if (consumed.get() < claimed.get()) {
+            schedule();
+        }
+    }
+
+    // Spinning only pays while the other side is running; after that, give up the core
+    private static void backOff(int spins) {
+        if (spins < SPIN_LIMIT) {
+            Thread.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+
+    private void drainTo(long limit) {
+        long next = consumed.get();
+        while (next < limit) {
+            int index = (int) next & mask;
+            for (int spins = 0; published.get(index) != next; spins++) {
+                backOff(spins);
+            }
+            User sender = senders[index];
+            byte[] body = bodies[index];
+            senders[index] = null;
+            bodies[index] = null;
+            consumed.set(++next);
+            handler.onMessage(sender, body);
+        }
+    }
+}
+
+// Singleton Pattern for managing chat rooms.
+// Membership, history and receipts are confined to the room's loop thread, so none of them are locked.
+class ChatRoom {
+    private static final int BITMAP_MEMBERSHIP_THRESHOLD = Integer.getInteger("chat.room.bitmapThreshold", 10_000);
+    private static final int INGEST_RING_SIZE = Integer.getInteger("chat.room.ringSize", 1024);
+    private static final int JOIN_REPLAY_MESSAGES = Integer.getInteger("chat.history.joinReplay", 50);
+    private static final long JOIN_REPLAY_WINDOW_MILLIS = Long.getLong("chat.history.joinWindowMillis", 0L);
+    private static final ConcurrentMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    // Rooms whose stored history has been loaded since startup; recovery timings are reported for the first load only
+    private static final Set<String> recovered = ConcurrentHashMap.newKeySet();
+    private final String roomId;
+    private final NavigableMap<Long, RoaringBitmap> readReceipts = new TreeMap<>();
+    private RoomMembership users;
+    private final MessageHistory messageHistory;
+    private final RoomLog log;
+    private final RoomLoop loop;
+    private final IngestRing ingest;
+    private final BackpressurePolicy backpressure;
+    private boolean closed;
+
+    private ChatRoom(String roomId) {
+        this(roomId, RetentionPolicy.fromSystemProperties());
+    }
+
+    private ChatRoom(String roomId, RetentionPolicy retention) {
+        this.roomId = roomId;
+        loop = RoomLoops.getInstance().loopFor(roomId);
+        ingest = new IngestRing(INGEST_RING_SIZE, this::consume, loop);
+        backpressure = BackpressurePolicy.forRoom(roomId);
+        users = new IntMembershipSet();
+        log = MessageStore.getInstance().acquireLog(roomId);
+        long replayStarted = System.nanoTime();
+        long start = Math.max(log.firstSequence(), log.nextSequence() - retention.getMaxMessages());
+        messageHistory = new MessageHistory(retention, start);
+        log.read(start, log.nextSequence(), record -> messageHistory.append(record.toMessage(roomId)));
+        if (log.nextSequence() > 0 && recovered.add(roomId)) {
+            OutputSinks.get().println(String.format("Recovered room %s: tail %d ms, replayed %d messages in %d ms",
+                    roomId, TimeUnit.NANOSECONDS.toMillis(log.recoveryNanos()), messageHistory.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - replayStarted)));
+        }
+    }
+
+    // Only discovers which rooms have logs. Nothing is opened or registered here: a room's recent history is
+    // rebuilt from its log on its first getRoom, so startup cost does not grow with rooms that are no longer used.
+    // That first load reports the tail recovery and replay timings.
+    public static void recover() {
+        long started = System.nanoTime();
+        try {
+            int stored = MessageStore.getInstance().storedRoomIds().size();
+            System.out.printf("Found %d stored rooms in %d ms; their history loads on first use%n",
+                    stored, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } catch (IOException e) {
+            System.err.println("Recovery skipped: " + e.getMessage());
+        }
+    }
+
+    // Lock-free lookup on the hot path; creation is atomic per room id
+    public static ChatRoom getRoom(String roomId) {
+        ChatRoom room = rooms.get(roomId);
+        return room != null ? room : rooms.computeIfAbsent(roomId, ChatRoom::new);
+    }
+
+    public static ChatRoom findRoom(String roomId) {
+        return rooms.get(roomId);
+    }
+
+    // Rooms without members are not kept open, so their stored history is read straight from the log.
+    // Null when the room has never existed.
+    public static HistoryPage fetchHistory(String roomId, long beforeSequence, int limit) {
+        ChatRoom room = findRoom(roomId);
+        HistoryPage page = room == null ? null : room.fetchHistory(beforeSequence, limit);
+        if (page != null) {
+            return page;
+        }
+        MessageStore store = MessageStore.getInstance();
+        if (!store.hasLog(roomId)) {
+            return null;
+        }
+        RoomLog log = store.acquireLog(roomId);
+        try {
+            return log.page(beforeSequence, limit);
+        } finally {
+            store.releaseLog(roomId, log);
+        }
+    }
+
+    // Queued on the room's loop; a room torn down in the meantime hands the join to its replacement
+    public void joinRoom(User user) {
+        loop.execute(() -> join(user));
+    }
+
+    private void join(User user) {
+        if (closed) {
+            getRoom(roomId).join(user);
+            return;
+        }
+        if (addMember(user)) {
+            sendHistory(user);
+        }
+    }
+
+    // Rejoins a reconnecting client and sends only what it missed after lastSeenSequence,
+    // instead of the usual history replay
+    public void resumeRoom(User user, long lastSeenSequence) {
+        loop.execute(() -> resume(user, lastSeenSequence));
+    }
+
+    private void resume(User user, long lastSeenSequence) {
+        if (closed) {
+            getRoom(roomId).resume(user, lastSeenSequence);
+            return;
+        }
+        // Marked before the join notice goes out, so the notice arrives through the replay in sequence order
+        DeliveryEngine.getInstance().replayFrom(user, roomId, lastSeenSequence + 1);
+        addMember(user);
+    }
+
+    private boolean addMember(User user) {
+        // A join racing its session's logout must not outlive the leave that logout has already queued
+        PresenceLease lease = user.presence();
+        if ((lease != null && !lease.isActive()) || !users.add(user.getId())) {
+            return false;
+        }
+        if (users.size() > BITMAP_MEMBERSHIP_THRESHOLD && users instanceof IntMembershipSet) {
+            users = BitmapMembership.copyOf(users);
+        }
+        publish(ChatMessage.joined(roomId, messageHistory.nextSequence(), System.currentTimeMillis(), user));
+        return true;
+    }
+
+    // Completes once the room has dropped the user, so callers can release the id only after that
+    public CompletableFuture<Void> leaveRoom(User user) {
+        CompletableFuture<Void> left = new CompletableFuture<>();
+        loop.execute(() -> {
+            try {
+                leave(user);
+            } finally {
+                left.complete(null);
+            }
+        });
+        return left;
+    }
+
+    private void leave(User user) {
+        if (closed || !users.remove(user.getId())) {
+            return;
+        }
+        publish(ChatMessage.left(roomId, messageHistory.nextSequence(), System.currentTimeMillis(), user));
+        if (users.isEmpty()) {
+            tearDown();
+        }
+    }
+
+    // Later operations on this instance are handed to a fresh room, which reopens the log
+    private void tearDown() {
+        closed = true;
+        rooms.remove(roomId, this);
+        MessageStore.getInstance().releaseLog(roomId, log);
+    }
+
+    // Drops every id in the set from whichever rooms hold it: one task per room however many users are leaving
+    public static CompletableFuture<Void> removeMembers(RoaringBitmap ids) {
+        List<CompletableFuture<Void>> removals = new ArrayList<>();
+        for (ChatRoom room : rooms.values()) {
+            CompletableFuture<Void> removed = new CompletableFuture<>();
+            room.loop.execute(() -> {
+                room.leaveAll(ids);
+                removed.complete(null);
+            });
+            removals.add(removed);
+        }
+        return CompletableFuture.allOf(removals.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private void leaveAll(RoaringBitmap ids) {
+        if (closed) {
+            return;
+        }
+        UserRegistry registry = UserRegistry.getInstance();
+        for (int id : ids.toArray()) {
+            User user = registry.get(id);
+            if (user != null && users.remove(id)) {
+                publish(ChatMessage.left(roomId, messageHistory.nextSequence(), System.currentTimeMillis(), user));
+            }
+        }
+        if (users.isEmpty()) {
+            tearDown();
+        }
+    }
+
+    // Sends go through the ingestion ring; the loop drains it into history and fan-out.
+    // The body is encoded on the sender's thread and the message is stamped with its sequence on the loop.
+    public void broadcastMessage(User sender, String body) {
+        byte[] encoded = body.getBytes(StandardCharsets.UTF_8);
+        if (loop.inLoop()) {
+            // A full ring would never drain while its own consumer waits on it
+            ingest.drainAll();
+            consume(sender, encoded);
+        } else {
+            ingest.publish(sender, encoded);
+        }
+    }
+
+    private void consume(User sender, byte[] body) {
+        if (closed) {
+            getRoom(roomId).consume(sender, body);
+            return;
+        }
+        publish(ChatMessage.chat(roomId, messageHistory.nextSequence(), System.currentTimeMillis(), sender, body));
+        // A send to a room nobody is in still reaches the log, but must not leave the room open
+        if (users.isEmpty()) {
+            tearDown();
+        }
+    }
+
+    private void publish(ChatMessage message) {
+        append(message);
+        DeliveryEngine.getInstance().deliverAll(users.snapshot(), new SharedFrame(message, backpressure));
+    }
+
+    private void append(ChatMessage message) {
+        messageHistory.append(message);
+        readReceipts.headMap(messageHistory.firstSequence()).clear();
+        try {
+            log.append(message);
+        } catch (IOException e) {
+            System.err.println("Failed to persist message in room " + roomId + ": " + e.getMessage());
+        }
+    }
+
+    // Replays up to limit messages to a subscriber that fell behind or reconnected, then reports where to
+    // resume (-1 once it is level with the live stream). Runs on the loop so no live broadcast can interleave.
+    // The sink refuses a message once the subscriber has no room for it, and replay stops there
+    void catchUp(User subscriber, long fromSequence, int limit, Predicate<ChatMessage> sink, LongConsumer done) {
+        loop.execute(() -> {
+            long live = messageHistory.nextSequence();
+            if (closed || !users.contains(subscriber.getId())) {
+                done.accept(-1);
+                return;
+            }
+            long from = Math.max(fromSequence, log.firstSequence());
+            long to = Math.min(live, from + limit);
+            HistoryPage tail = from >= messageHistory.firstSequence() && to > from ? messageHistory.page(to, (int) (to - from)) : null;
+            List<ChatMessage> replay;
+            if (tail != null && tail.getFirstSequence() == from) {
+                replay = tail.getMessages();
+            } else {
+                // Older than the in-memory tail
+                List<ChatMessage> older = new ArrayList<>();
+                log.read(from, to, record -> older.add(record.toMessage(roomId)));
+                replay = older;
+            }
+            for (ChatMessage message : replay) {
+                if (!sink.test(message)) {
+                    done.accept(message.getSequence());
+                    return;
+                }
+            }
+            done.accept(to >= live ? -1 : to);
+        });
+    }
+
+    private void sendHistory(User user) {
+        OutputSinks.get().println("Sending chat history to " + user.getUsername() + "...");
+        DeliveryEngine delivery = DeliveryEngine.getInstance();
+        long since = JOIN_REPLAY_WINDOW_MILLIS > 0 ? System.currentTimeMillis() - JOIN_REPLAY_WINDOW_MILLIS : 0L;
+        messageHistory.forEachRecent(JOIN_REPLAY_MESSAGES, since, message -> delivery.deliver(user, message));
+    }
+
+    // Older pages are pulled on demand instead of being replayed on join; null once the room is torn down
+    public HistoryPage fetchHistory(long beforeSequence, int limit) {
+        return loop.call(() -> {
+            if (closed) {
+                return null;
+            }
+            if (beforeSequence <= messageHistory.firstSequence()) {
+                return log.page(beforeSequence, limit);
+            }
+            HistoryPage page = messageHistory.page(beforeSequence, limit);
+            return new HistoryPage(page.getMessages(), page.getFirstSequence(), page.getFirstSequence() > log.firstSequence());
+        });
+    }
+
+    // Read receipts are kept only for messages still in the in-memory history
+    public void markRead(User user, long sequence) {
+        loop.execute(() -> {
+            if (sequence >= messageHistory.firstSequence() && sequence < messageHistory.nextSequence()
+                    && users.contains(user.getId())) {
+                readReceipts.computeIfAbsent(sequence, s -> new RoaringBitmap()).add(user.getId());
+            }
+        });
+    }
+
+    // Answered on the room loop; like activeUsers() the caller is never blocked
+    public CompletableFuture<List<User>> membersWhoHaveNotRead(long sequence) {
+        return loop.submit(() -> {
+            RoaringBitmap readers = readReceipts.get(sequence);
+            RoaringBitmap unread = readers == null ? users.asBitmap() : users.asBitmap().andNot(readers);
+            UserRegistry registry = UserRegistry.getInstance();
+            List<User> members = new ArrayList<>();
+            for (int id : unread.toArray()) {
+                User user = registry.get(id);
+                if (user != null) {
+                    members.add(user);
+                }
+            }
+            return members;
+        });
+    }
+
+    public RoaringBitmap onlineMembers() {
+        return loop.call(() -> users.asBitmap().and(UserRegistry.getInstance().onlineSnapshot()));
+    }
+
+    public List<User> getActiveUsers() {
+        return loop.call(this::collectActiveUsers);
+    }
+
+    public CompletableFuture<List<User>> activeUsers() {
+        return loop.submit(this::collectActiveUsers);
+    }
+
+    private List<User> collectActiveUsers() {
+        MemberSnapshot members = users.snapshot();
+        UserRegistry registry = UserRegistry.getInstance();
+        List<User> active = new ArrayList<>(members.size());
+        members.forEach(0, members.size(), id -> {
+            User user = registry.get(id);
+            if (user != null) {
+                active.add(user);
+            }
+        });
+        return active;
+    }
+}
+
+// One user's private messages, kept in a bounded log on disk. Every message is appended first; while the
+// owner is connected it is sent in windows that advance as the client acknowledges. All state is owned by
+// a room loop, so senders only enqueue and never wait on the recipient or on each other.
+class Inbox {
+    private static final int MAX_UNACKNOWLEDGED = Integer.getInteger("chat.inbox.maxMessages", 10_000);
+    static final int WINDOW = Integer.getInteger("chat.inbox.window", 256);
+
+    private final String owner;
+    private final Path cursorFile;
+    private final RoomLoop loop;
+    private RoomLog log;
+    // First sequence the owner has not acknowledged
+    private long cursor;
+    // Next sequence to hand to the connected owner; a dropped message moves it back
+    private long sent;
+    // Messages past the cursor already written to a client that cannot acknowledge, by sequence modulo WINDOW.
+    // The cursor only passes a message once it and everything before it have been written.
+    private final BitSet written = new BitSet(WINDOW);
+    private User recipient;
+    // Connections and in-flight sends holding this inbox open; only changed under the router's map entry
+    int references;
+
+    // The log and cursor are loaded on the loop, behind any close still queued by a previous Inbox for this user
+    Inbox(String owner) {
+        this.owner = owner;
+        cursorFile = MessageStore.getInstance().inboxDirectory(owner).resolve("cursor");
+        loop = RoomLoops.getInstance().loopFor("@" + owner);
+        loop.execute(() -> {
+            log = MessageStore.getInstance().acquireInbox(owner);
+            cursor = Math.max(log.firstSequence(), readCursor());
+        });
+    }
+
+    public String owner() {
+        return owner;
+    }
+
+    public void append(User from, byte[] body, long timestamp) {
+        loop.execute(() -> store(from, body, timestamp));
+    }
+
+    // Everything not yet acknowledged is sent again on each connection
+    public void attach(User user) {
+        loop.execute(() -> {
+            recipient = user;
+            sent = cursor;
+            written.clear();
+            sendWindow();
+        });
+    }
+
+    public void detach(User user) {
+        loop.execute(() -> {
+            if (recipient == user) {
+                recipient = null;
+                writeCursor();
+            }
+        });
+    }
+
+    public void acknowledge(long sequence) {
+        loop.execute(() -> advance(sequence));
+    }
+
+    // Runs after every task already queued, so no append or acknowledgement is lost
+    void close() {
+        loop.execute(() -> {
+            recipient = null;
+            writeCursor();
+            MessageStore.getInstance().releaseInbox(owner, log);
+        });
+    }
+
+    private void store(User from, byte[] body, long timestamp) {
+        long sequence = log.nextSequence();
+        try {
+            log.append(ChatMessage.direct(from, owner, sequence, timestamp, body));
+        } catch (IOException e) {
+            System.err.println("Failed to store private message for " + owner + ": " + e.getMessage());
+            return;
+        }
+        // Bounded: past the limit the oldest unacknowledged messages are given up
+        if (sequence - cursor >= MAX_UNACKNOWLEDGED) {
+            moveCursor(sequence + 1 - MAX_UNACKNOWLEDGED);
+        }
+        sendWindow();
+    }
+
+    // An acknowledgement covers everything up to the sequence, but not past a dropped message still to be sent again
+    private void advance(long sequence) {
+        if (sequence >= cursor && sequence < sent) {
+            moveCursor(sequence + 1);
+            writeCursor();
+        }
+        sendWindow();
+    }
+
+    private void moveCursor(long to) {
+        for (long sequence = cursor; sequence < Math.min(to, cursor + WINDOW); sequence++) {
+            written.clear(slot(sequence));
+        }
+        cursor = to;
+        sent = Math.max(sent, cursor);
+    }
+
+    private static int slot(long sequence) {
+        return (int) (sequence % WINDOW);
+    }
+
+    private void sendWindow() {
+        if (recipient == null) {
+            return;
+        }
+        long end = Math.min(log.nextSequence(), cursor + WINDOW);
+        if (sent >= end) {
+            return;
+        }
+        List<ChatMessage> batch = new ArrayList<>((int) (end - sent));
+        log.read(sent, end, record -> {
+            ChatMessage message = record.toDirectMessage(owner);
+            // Resending after a drop skips whatever has been written since
+            if (!written.get(slot(message.getSequence()))) {
+                batch.add(message);
+            }
+        });
+        sent = end;
+        User target = recipient;
+        // Clients that do not see sequence numbers cannot acknowledge them; each message being written counts instead
+        boolean acknowledgesItself = target.isSequenced();
+        DeliveryEngine delivery = DeliveryEngine.getInstance();
+        for (ChatMessage message : batch) {
+            long sequence = message.getSequence();
+            Runnable onWritten = acknowledgesItself ? null : () -> loop.execute(() -> delivered(target, sequence));
+            delivery.deliver(target, message, onWritten, () -> loop.execute(() -> dropped(target, sequence)));
+        }
+    }
+
+    private void delivered(User target, long sequence) {
+        if (recipient != target || sequence < cursor) {
+            return;
+        }
+        written.set(slot(sequence));
+        long start = cursor;
+        while (written.get(slot(cursor))) {
+            written.clear(slot(cursor));
+            cursor++;
+        }
+        if (cursor != start) {
+            sent = Math.max(sent, cursor);
+            writeCursor();
+        }
+        sendWindow();
+    }
+
+    // Sent again with the next window, which the next write, acknowledgement, message or reconnection triggers;
+    // resending straight away would spin while the mailbox that dropped it is still full
+    private void dropped(User target, long sequence) {
+        if (recipient == target && sequence >= cursor && sequence < sent) {
+            sent = sequence;
+        }
+    }
+
+    private long readCursor() {
+        try {
+            return Files.exists(cursorFile) ? ByteBuffer.wrap(Files.readAllBytes(cursorFile)).getLong() : 0;
+        } catch (IOException | BufferUnderflowException e) {
+            return 0;
+        }
+    }
+
+    private void writeCursor() {
+        try {
+            Files.write(cursorFile, ByteBuffer.allocate(8).putLong(cursor).array());
+        } catch (IOException e) {
+            System.err.println("Failed to save inbox cursor for " + owner + ": " + e.getMessage());
+        }
+    }
+}
+
+// Private messages go to the recipient's inbox, keyed by username so they survive the recipient going
+// offline and its user id being recycled. No room or shared lock is involved, so DM throughput grows
+// with the number of users.
+class DirectMessageRouter {
+    private static final DirectMessageRouter INSTANCE = new DirectMessageRouter();
+
+    // Only inboxes somebody holds are open: a connected owner, or a send still being stored
+    private final ConcurrentMap<String, Inbox> inboxes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<User, Inbox> connected = new ConcurrentHashMap<>();
+
+    private DirectMessageRouter() {}
+
+    public static DirectMessageRouter getInstance() {
+        return INSTANCE;
+    }
+
+    // False when the recipient has never connected and so has no inbox; the sender gets its own copy back
+    public boolean send(User from, String recipient, String body) {
+        Inbox inbox = acquire(recipient, false);
+        if (inbox == null) {
+            return false;
+        }
+        byte[] encoded = body.getBytes(StandardCharsets.UTF_8);
+        long now = System.currentTimeMillis();
+        inbox.append(from, encoded, now);
+        release(inbox);
+        if (!from.getUsername().equals(recipient)) {
+            DeliveryEngine.getInstance().deliver(from, ChatMessage.direct(from, recipient, -1, now, encoded));
+        }
+        return true;
+    }
+
+    // Creates the user's inbox on first login and sends whatever arrived while they were away
+    public void connect(User user) {
+        Inbox inbox = acquire(user.getUsername(), true);
+        connected.put(user, inbox);
+        inbox.attach(user);
+    }
+
+    public void disconnect(User user) {
+        Inbox inbox = connected.remove(user);
+        if (inbox != null) {
+            inbox.detach(user);
+            release(inbox);
+        }
+    }
+
+    public void acknowledge(User user, long sequence) {
+        Inbox inbox = connected.get(user);
+        if (inbox != null) {
+            inbox.acknowledge(sequence);
+        }
+    }
+
+    private Inbox acquire(String username, boolean create) {
+        Inbox[] acquired = new Inbox[1];
+        inboxes.compute(username, (name, inbox) -> {
+            if (inbox == null) {
+                if (!create && !Files.isDirectory(MessageStore.getInstance().inboxDirectory(name))) {
+                    return null;
+                }
+                inbox = new Inbox(name);
+            }
+            inbox.references++;
+            acquired[0] = inbox;
+            return inbox;
+        });
+        return acquired[0];
+    }
+
+    private void release(Inbox inbox) {
+        inboxes.computeIfPresent(inbox.owner(), (name, current) -> {
+            if (current != inbox || --inbox.references > 0) {
+                return current;
+            }
+            inbox.close();
+            return null;
+        });
+    }
+}
+
+// Heartbeat-driven presence for transport sessions. Leases sit in a hashed timing wheel with one slot per
+// tick of the timeout; a heartbeat only stamps the lease, and a lease whose slot comes up still fresh is moved
+// to the slot of its new deadline. A tick therefore visits only the leases due in its slot, so each live
+// session costs about one visit per timeout no matter how many there are, and one thread serves them all.
+class Presence {
+    private static final long TIMEOUT_MILLIS = Long.getLong("chat.presence.timeoutMillis", 60_000L);
+    private static final long TICK_MILLIS = Long.getLong("chat.presence.tickMillis", 1_000L);
+    private static Presence instance;
+
+    private final PresenceLease[] wheel;
+    // Leases are created on session threads and handed to the wheel thread on its next tick
+    private final Queue<PresenceLease> arrivals = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService ticker;
+    // Next tick to process; owned by the wheel thread
+    private long tick;
+
+    private Presence() {
+        wheel = new PresenceLease[(int) Math.max(1, TIMEOUT_MILLIS / TICK_MILLIS) + 1];
+        tick = System.currentTimeMillis() / TICK_MILLIS;
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::advance, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized Presence getInstance() {
+        if (instance == null) {
+            instance = new Presence();
+        }
+        return instance;
+    }
+
+    // onExpired runs after the user has left its rooms and been unregistered; it should drop the transport
+    public PresenceLease track(User user, Runnable onExpired) {
+        PresenceLease lease = new PresenceLease(user, onExpired);
+        user.attachPresence(lease);
+        arrivals.add(lease);
+        return lease;
+    }
+
+    // A backpressure DISCONNECT: the transport is dropped and the user logged out exactly as on expiry.
+    // Whoever ends the lease first does the cleanup, so a racing transport disconnect is harmless.
+    public void evict(User user) {
+        PresenceLease lease = user.presence();
+        if (lease != null && !lease.end()) {
+            return;
+        }
+        user.evict();
+        logOut(Collections.singletonList(user));
+    }
+
+    // Explicit logout: only the rooms the session joined are visited, and like expiry the id is released
+    // once each of them has processed the leave. Does nothing if the wheel or an eviction got there first.
+    public void end(PresenceLease lease, Collection<String> joinedRooms) {
+        if (!lease.end()) {
+            return;
+        }
+        User user = lease.user();
+        List<CompletableFuture<Void>> leaves = new ArrayList<>();
+        for (String roomId : joinedRooms) {
+            ChatRoom room = ChatRoom.findRoom(roomId);
+            if (room != null) {
+                leaves.add(room.leaveRoom(user));
+            }
+        }
+        CompletableFuture.allOf(leaves.toArray(new CompletableFuture<?>[0])).thenRun(() -> forget(user));
+    }
+
+    private void advance() {
+        try {
+            long now = System.currentTimeMillis();
+            PresenceLease arrived;
+            while ((arrived = arrivals.poll()) != null) {
+                schedule(arrived, now);
+            }
+            List<PresenceLease> expired = new ArrayList<>();
+            // A late run catches up on every tick it missed
+            for (long current = now / TICK_MILLIS; tick <= current; tick++) {
+                int slot = (int) Math.floorMod(tick, (long) wheel.length);
+                PresenceLease lease = wheel[slot];
+                wheel[slot] = null;
+                while (lease != null) {
+                    PresenceLease next = lease.next;
+                    lease.next = null;
+                    if (lease.lastSeen() + TIMEOUT_MILLIS > now) {
+                        schedule(lease, now);
+                    } else if (lease.expire()) {
+                        expired.add(lease);
+                    }
+                    lease = next;
+                }
+            }
+            if (!expired.isEmpty()) {
+                removeAll(expired);
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule and freeze presence for good
+            System.err.println("Presence tick failed: " + e.getMessage());
+        }
+    }
+
+    // Ended leases simply fall out of the wheel the next time their slot comes up
+    private void schedule(PresenceLease lease, long now) {
+        if (!lease.isActive()) {
+            return;
+        }
+        long deadline = Math.max(lease.lastSeen() + TIMEOUT_MILLIS, now);
+        long due = Math.max((deadline + TICK_MILLIS - 1) / TICK_MILLIS, tick + 1);
+        int slot = (int) Math.floorMod(due, (long) wheel.length);
+        lease.next = wheel[slot];
+        wheel[slot] = lease;
+    }
+
+    private void removeAll(List<PresenceLease> leases) {
+        List<User> users = new ArrayList<>(leases.size());
+        for (PresenceLease lease : leases) {
+            users.add(lease.user());
+        }
+        logOut(users).thenRun(() -> {
+            for (PresenceLease lease : leases) {
+                if (lease.isExpired()) {
+                    lease.onExpired().run();
+                }
+            }
+        });
+    }
+
+    // Every user leaves every room in one pass per room. Ids are only released once the rooms
+    // are done with them, so a new login cannot inherit a dead session's memberships.
+    private CompletableFuture<Void> logOut(List<User> users) {
+        RoaringBitmap ids = new RoaringBitmap();
+        for (User user : users) {
+            ids.add(user.getId());
+        }
+        return ChatRoom.removeMembers(ids).thenRun(() -> users.forEach(Presence::forget));
+    }
+
+    private static void forget(User user) {
+        DirectMessageRouter.getInstance().disconnect(user);
+        UserRegistry.getInstance().unregister(user);
+        DeliveryEngine.getInstance().release(user);
+    }
+}
+
+// One session's claim to be online. Whoever ends it first, the session's own disconnect or the wheel's
+// expiry, does the cleanup.
+class PresenceLease {
+    private static final int ACTIVE = 0;
+    private static final int ENDED = 1;
+    private static final int EXPIRED = 2;
+
+    private final User user;
+    private final Runnable onExpired;
+    private final AtomicInteger state = new AtomicInteger(ACTIVE);
+    private volatile long lastSeen = System.currentTimeMillis();
+    // Wheel bucket link; only the wheel thread touches it
+    PresenceLease next;
+
+    PresenceLease(User user, Runnable onExpired) {
+        this.user = user;
+        this.onExpired = onExpired;
+    }
+
+    public void heartbeat() {
+        lastSeen = System.currentTimeMillis();
+    }
+
+    // True if the caller now owns the cleanup; false once the wheel has expired the session
+    public boolean end() {
+        return state.compareAndSet(ACTIVE, ENDED);
+    }
+
+    boolean expire() {
+        return state.compareAndSet(ACTIVE, EXPIRED);
+    }
+
+    boolean isActive() {
+        return state.get() == ACTIVE;
+    }
+
+    boolean isExpired() {
+        return state.get() == EXPIRED;
+    }
+
+    long lastSeen() {
+        return lastSeen;
+    }
+
+    User user() {
+        return user;
+    }
+
+    Runnable onExpired() {
+        return onExpired;
+    }
+}
+
+// Adapter Pattern for communication protocols
+interface CommunicationProtocol {
+    void connect();
+}
+
+class WebSocketProtocol implements CommunicationProtocol {
+    @Override
+    public void connect() {
+        try {
+            NioServer server = new NioServer("websocket", Integer.getInteger("chat.ws.port", 8080), WebSocketSession::new);
+            server.start();
+            System.out.println("Connected via WebSocket. Listening on port " + server.getPort() + ".");
+        } catch (IOException e) {
+            System.out.println("WebSocket server failed to start: " + e.getMessage());
+        }
+    }
+}
+
+class HTTPProtocol implements CommunicationProtocol {
+    @Override
+    public void connect() {
+        try {
+            NioServer server = new NioServer("http", Integer.getInteger("chat.http.port", 8081), HttpSession::new);
+            server.start();
+            System.out.println("Connected via HTTP. Listening on port " + server.getPort() + ".");
+        } catch (IOException e) {
+            System.out.println("HTTP server failed to start: " + e.getMessage());
+        }
+    }
+}
+
+class CommunicationAdapter {
+    private CommunicationProtocol protocol;
+
+    public CommunicationAdapter(CommunicationProtocol protocol) {
+        this.protocol = protocol;
+    }
+
+    public void connect() {
+        protocol.connect();
+    }
+}
+
+// Selector event loop; every connection is served entirely by the loop it was assigned to
+class EventLoop implements Runnable {
+    private static final long TICK_MILLIS = 1000;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final Thread thread;
+    private long lastTick;
+
+    public EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    // Shared by every connection on this loop; handlers must consume or copy it before returning
+    public ByteBuffer readBuffer() {
+        return readBuffer.clear();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // Tasks queued from this thread never wake the selector, so don't block while any are pending
+                if (tasks.isEmpty()) {
+                    selector.select(TICK_MILLIS);
+                } else {
+                    selector.selectNow();
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (key.isValid()) {
+                        ((Selectable) key.attachment()).onSelected(key);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastTick >= TICK_MILLIS) {
+                    lastTick = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid()) {
+                            ((Selectable) key.attachment()).onTick(now);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println(thread.getName() + " error: " + e.getMessage());
+            }
+        }
+    }
+}
+
+interface Selectable {
+    void onSelected(SelectionKey key);
+
+    default void onTick(long now) {
+    }
+}
+
+interface ConnectionHandler {
+    void onOpen(NioConnection connection);
+
+    void onData(NioConnection connection, ByteBuffer data);
+
+    void onTick(NioConnection connection, long now);
+
+    void onClose(NioConnection connection);
+}
+
+// Non-blocking listener that spreads accepted sockets round-robin across one event loop per core
+class NioServer implements Selectable {
+    private final String name;
+    private final int port;
+    private final Supplier<ConnectionHandler> handlers;
+    private final EventLoop[] loops;
+    private ServerSocketChannel server;
+    private int next;
+
+    public NioServer(String name, int port, Supplier<ConnectionHandler> handlers) throws IOException {
+        this.name = name;
+        this.port = port;
+        this.handlers = handlers;
+        loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(name + "-loop-" + i);
+        }
+    }
+
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(new InetSocketAddress(port), 1024);
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        loops[0].execute(() -> {
+            try {
+                server.register(loops[0].selector(), SelectionKey.OP_ACCEPT, this);
+            } catch (ClosedChannelException e) {
+                System.err.println(name + " listener closed: " + e.getMessage());
+            }
+        });
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[next++ % loops.length];
+                NioConnection connection = new NioConnection(loop, channel, handlers.get());
+                loop.execute(connection::register);
+            }
+        } catch (IOException e) {
+            System.err.println(name + " accept failed: " + e.getMessage());
+        }
+    }
+}
+
+// One socket; writes may come from any thread and are flushed on the owning loop
+class NioConnection implements Selectable {
+    // Queued writes beyond which the connection reports itself congested to the delivery mailbox
+    private static final int WRITE_HIGH_WATER = Integer.getInteger("chat.connection.writeHighWater", 256);
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final ConnectionHandler handler;
+    private final Queue<PendingWrite> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicInteger queuedWrites = new AtomicInteger();
+    private final AtomicReference<Runnable> drainWaiter = new AtomicReference<>();
+    private SelectionKey key;
+    private boolean closeAfterFlush;
+    private volatile boolean closed;
+
+    public NioConnection(EventLoop loop, SocketChannel channel, ConnectionHandler handler) {
+        this.loop = loop;
+        this.channel = channel;
+        this.handler = handler;
+    }
+
+    void register() {
+        try {
+            key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+            handler.onOpen(this);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    public void write(ByteBuffer data) {
+        write(data, null);
+    }
+
+    // onWritten runs on the loop once the data has been written or the connection has closed
+    public void write(ByteBuffer data, Runnable onWritten) {
+        write(new ByteBuffer[] {data}, onWritten);
+    }
+
+    // Gathering write: the buffers go out in as few syscalls as the socket allows
+    public void write(ByteBuffer[] data, Runnable onWritten) {
+        queuedWrites.incrementAndGet();
+        outbound.add(new PendingWrite(data, onWritten));
+        if (closed) {
+            discardOutbound();
+            return;
+        }
+        if (loop.inEventLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    public void execute(Runnable task) {
+        loop.execute(task);
+    }
+
+    // Inside an onWritten callback, true means the write was discarded rather than sent
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isCongested() {
+        return !closed && queuedWrites.get() >= WRITE_HIGH_WATER;
+    }
+
+    // Runs task once the write queue falls to half the high-water mark, or right away if it already has
+    public void whenDrained(Runnable task) {
+        drainWaiter.set(task);
+        if (closed || queuedWrites.get() <= WRITE_HIGH_WATER / 2) {
+            runDrainWaiter();
+        }
+    }
+
+    private void runDrainWaiter() {
+        Runnable waiter = drainWaiter.getAndSet(null);
+        if (waiter != null) {
+            waiter.run();
+        }
+    }
+
+    private void completed(PendingWrite write) {
+        write.completed();
+        if (queuedWrites.decrementAndGet() <= WRITE_HIGH_WATER / 2) {
+            runDrainWaiter();
+        }
+    }
+
+    public void closeAfterFlush() {
+        loop.execute(() -> {
+            closeAfterFlush = true;
+            flush();
+        });
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) {
+        if (key.isReadable()) {
+            ByteBuffer buffer = loop.readBuffer();
+            try {
+                if (channel.read(buffer) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            buffer.flip();
+            handler.onData(this, buffer);
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void onTick(long now) {
+        handler.onTick(this, now);
+    }
+
+    private void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            PendingWrite head;
+            while ((head = outbound.peek()) != null) {
+                channel.write(head.data);
+                if (head.data[head.data.length - 1].hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+                completed(head);
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterFlush) {
+                close();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closing; nothing useful to report
+        }
+        discardOutbound();
+        handler.onClose(this);
+    }
+
+    private void discardOutbound() {
+        PendingWrite pending;
+        while ((pending = outbound.poll()) != null) {
+            completed(pending);
+        }
+        runDrainWaiter();
+    }
+
+    private static class PendingWrite {
+        final ByteBuffer[] data;
+        final Runnable onWritten;
+
+        PendingWrite(ByteBuffer[] data, Runnable onWritten) {
+            this.data = data;
+            this.onWritten = onWritten;
+        }
+
+        void completed() {
+            if (onWritten != null) {
+                onWritten.run();
+            }
+        }
+    }
+}
+
+// Chat user whose deliveries are written to a WebSocket instead of the console
+class WebSocketUser extends User implements FrameObserver, BatchObserver {
+    private final WebSocketSession session;
+
+    public WebSocketUser(String username, WebSocketSession session) {
+        super(username);
+        this.session = session;
+    }
+
+    @Override
+    public void update(String message) {
+        session.sendText(message);
+    }
+
+    @Override
+    public void update(SharedFrame frame) {
+        if (isSequenced()) {
+            // Sequence prefixes differ per room, so these clients get their own encoding instead of the shared one
+            session.sendText(frame.text(true), frame::written);
+            frame.release();
+        } else {
+            session.sendFrame(frame);
+        }
+    }
+
+    @Override
+    public void update(List<SharedFrame> frames) {
+        if (isSequenced()) {
+            frames.forEach(this::update);
+        } else {
+            session.sendFrames(frames);
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return !session.connection().isCongested();
+    }
+
+    @Override
+    public void whenReady(Runnable task) {
+        session.connection().whenDrained(task);
+    }
+
+    // The client is not reading, so a close frame would only queue behind the backlog
+    @Override
+    public void evict() {
+        NioConnection connection = session.connection();
+        connection.execute(connection::close);
+    }
+}
+
+// Line command protocol shared by the socket transports: LOGIN, JOIN, RESUME, SEQUENCES, LEAVE, SEND, PM, ACK,
+// READ, UNREAD, USERS and PING. Every command counts as a heartbeat.
+class ChatCommandHandler {
+    private final Function<String, User> userFactory;
+    private final Consumer<String> replies;
+    private final Executor replyOn;
+    private final Set<String> joinedRooms = new HashSet<>();
+    private User user;
+    private PresenceLease presence;
+    // Replies leave in command order even while one of them waits on a room loop
+    private CompletableFuture<Void> pendingReplies = CompletableFuture.completedFuture(null);
+
+    // Replies that had to wait are sent from replyOn, which should be the thread the transport writes from
+    public ChatCommandHandler(Function<String, User> userFactory, Consumer<String> replies, Executor replyOn) {
+        this.userFactory = userFactory;
+        this.replies = replies;
+        this.replyOn = replyOn;
+    }
+
+    public void handle(String text) {
+        String[] parts = text.trim().split(" ", 3);
+        String command = parts[0].toUpperCase(Locale.ROOT);
+        if (user != null && !presence.isActive()) {
+            // Expired or evicted: Presence has already taken this session out of its rooms and the registry
+            user = null;
+            joinedRooms.clear();
+        }
+        heartbeat();
+        if (user == null && !command.equals("LOGIN")) {
+            reply("ERROR Login first: LOGIN <username> [SEQUENCES]");
+            return;
+        }
+        switch (command) {
+            case "LOGIN":
+                if (user != null || parts.length < 2) {
+                    reply("ERROR Usage: LOGIN <username> [SEQUENCES]");
+                } else if (!UserRegistry.getInstance().register(userFactory.apply(parts[1]))) {
+                    reply("ERROR User already exists.");
+                } else {
+                    user = UserRegistry.getInstance().find(parts[1]);
+                    presence = Presence.getInstance().track(user, user::evict);
+                    // Set before the inbox is attached so stored private messages arrive numbered for ACK
+                    user.setSequenced(parts.length > 2 && parts[2].trim().equalsIgnoreCase("SEQUENCES"));
+                    reply("OK Logged in as " + parts[1]);
+                    DirectMessageRouter.getInstance().connect(user);
+                }
+                break;
+            case "JOIN":
+                if (parts.length < 2) {
+                    reply("ERROR Usage: JOIN <room>");
+                } else if (joinedRooms.add(parts[1])) {
+                    ChatRoom.getRoom(parts[1]).joinRoom(user);
+                }
+                break;
+            case "RESUME":
+                long lastSeen = parts.length < 3 ? -1 : parseSequence(parts[2]);
+                if (lastSeen < 0) {
+                    reply("ERROR Usage: RESUME <room> <last sequence seen>");
+                } else {
+                    joinedRooms.add(parts[1]);
+                    ChatRoom.getRoom(parts[1]).resumeRoom(user, lastSeen);
+                }
+                break;
+            case "SEQUENCES":
+                user.setSequenced(parts.length < 2 || !parts[1].equalsIgnoreCase("OFF"));
+                reply("OK Sequences " + (user.isSequenced() ? "on" : "off"));
+                break;
+            case "LEAVE":
+                if (parts.length >= 2 && joinedRooms.remove(parts[1])) {
+                    ChatRoom room = ChatRoom.findRoom(parts[1]);
+                    if (room != null) {
+                        room.leaveRoom(user);
+                    }
+                }
+                break;
+            case "SEND":
+                if (parts.length < 3) {
+                    reply("ERROR Usage: SEND <room> <message>");
+                } else {
+                    ChatRoom.getRoom(parts[1]).broadcastMessage(user, parts[2]);
+                }
+                break;
+            case "PM":
+                if (parts.length < 3 || !DirectMessageRouter.getInstance().send(user, parts[1], parts[2])) {
+                    reply("ERROR Usage: PM <known user> <message>");
+                }
+                break;
+            case "ACK":
+                long acknowledged = parts.length < 2 ? -1 : parseSequence(parts[1]);
+                if (acknowledged < 0) {
+                    reply("ERROR Usage: ACK <inbox sequence>");
+                } else {
+                    DirectMessageRouter.getInstance().acknowledge(user, acknowledged);
+                }
+                break;
+            case "READ":
+                // READ <room> <sequence> records a read receipt for that message
+                long read = parts.length < 3 ? -1 : parseSequence(parts[2]);
+                if (read < 0) {
+                    reply("ERROR Usage: READ <room> <sequence>");
+                } else {
+                    ChatRoom readIn = ChatRoom.findRoom(parts[1]);
+                    if (readIn != null) {
+                        readIn.markRead(user, read);
+                    }
+                }
+                break;
+            case "UNREAD":
+                long unread = parts.length < 3 ? -1 : parseSequence(parts[2]);
+                ChatRoom unreadIn = unread < 0 ? null : ChatRoom.findRoom(parts[1]);
+                if (unread < 0) {
+                    reply("ERROR Usage: UNREAD <room> <sequence>");
+                } else if (unreadIn == null) {
+                    reply("UNREAD");
+                } else {
+                    replyLater(unreadIn.membersWhoHaveNotRead(unread), "UNREAD");
+                }
+                break;
+            case "USERS":
+                ChatRoom room = parts.length < 2 ? null : ChatRoom.findRoom(parts[1]);
+                if (room == null) {
+                    reply("USERS");
+                } else {
+                    replyLater(room.activeUsers(), "USERS");
+                }
+                break;
+            case "PING":
+                reply("PONG");
+                break;
+            default:
+                reply("ERROR Unknown command " + parts[0]);
+        }
+    }
+
+    private void reply(String text) {
+        if (pendingReplies.isDone()) {
+            replies.accept(text);
+        } else {
+            pendingReplies = pendingReplies.thenRunAsync(() -> replies.accept(text), replyOn);
+        }
+    }
+
+    // Answers "<label> name name ..." from a room loop's result rather than blocking this thread on it
+    private void replyLater(CompletableFuture<List<User>> members, String label) {
+        pendingReplies = pendingReplies.thenCombine(members, (previous, answer) -> answer)
+                .thenAcceptAsync(answer -> {
+                    StringBuilder names = new StringBuilder(label);
+                    for (User member : answer) {
+                        names.append(' ').append(member.getUsername());
+                    }
+                    replies.accept(names.toString());
+                }, replyOn);
+    }
+
+    private static long parseSequence(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public void heartbeat() {
+        if (presence != null) {
+            presence.heartbeat();
+        }
+    }
+
+    // Leaves every joined room and frees the username when the transport goes away,
+    // unless the session already expired and the presence wheel cleaned up after it
+    public void disconnect() {
+        if (user == null) {
+            return;
+        }
+        user = null;
+        Presence.getInstance().end(presence, joinedRooms);
+    }
+}
+
+// RFC 6455 handshake and framing; text frames carry line commands such as "SEND room hello"
+class WebSocketSession implements ConnectionHandler {
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_MESSAGE_BYTES = 64 * 1024;
+    private static final long PING_AFTER_MILLIS = 30_000;
+    private static final long TIMEOUT_MILLIS = 60_000;
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private NioConnection connection;
+    private ByteBuffer inbound = ByteBuffer.allocate(1024);
+    private ByteArrayOutputStream fragments;
+    private boolean upgraded;
+    private boolean closeSent;
+    private long lastSeen;
+    private final ChatCommandHandler commands = new ChatCommandHandler(name -> new WebSocketUser(name, this), this::sendText,
+            task -> connection.execute(task));
+
+    @Override
+    public void onOpen(NioConnection connection) {
+        this.connection = connection;
+        lastSeen = System.currentTimeMillis();
+    }
+
+    @Override
+    public void onData(NioConnection connection, ByteBuffer data) {
+        lastSeen = System.currentTimeMillis();
+        if (inbound.remaining() < data.remaining()) {
+            int needed = inbound.position() + data.remaining();
+            if (needed > MAX_MESSAGE_BYTES * 2) {
+                close(1009);
+                return;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, inbound.capacity() * 2));
+            inbound.flip();
+            grown.put(inbound);
+            inbound = grown;
+        }
+        inbound.put(data);
+        inbound.flip();
+        if (!upgraded) {
+            handshake();
+        }
+        while (upgraded && !closeSent && readFrame()) {
+            // Keep parsing complete frames
+        }
+        inbound.compact();
+    }
+
+    @Override
+    public void onTick(NioConnection connection, long now) {
+        if (!upgraded) {
+            return;
+        }
+        if (now - lastSeen > TIMEOUT_MILLIS) {
+            connection.close();
+        } else if (now - lastSeen > PING_AFTER_MILLIS) {
+            connection.write(frame(OP_PING, new byte[0]));
+        }
+    }
+
+    @Override
+    public void onClose(NioConnection connection) {
+        commands.disconnect();
+    }
+
+    public void sendText(String text) {
+        connection.write(frame(OP_TEXT, text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // onSent runs only if the frame actually reached the socket
+    public void sendText(String text, Runnable onSent) {
+        connection.write(frame(OP_TEXT, text.getBytes(StandardCharsets.UTF_8)), () -> {
+            if (!connection.isClosed()) {
+                onSent.run();
+            }
+        });
+    }
+
+    public NioConnection connection() {
+        return connection;
+    }
+
+    // Writes the broadcast's shared encoding and releases it once the socket has taken every byte
+    public void sendFrame(SharedFrame frame) {
+        connection.write(frame.webSocketSlice(), () -> {
+            if (!connection.isClosed()) {
+                frame.written();
+            }
+            frame.release();
+        });
+    }
+
+    public void sendFrames(List<SharedFrame> frames) {
+        ByteBuffer[] slices = new ByteBuffer[frames.size()];
+        for (int i = 0; i < slices.length; i++) {
+            slices[i] = frames.get(i).webSocketSlice();
+        }
+        connection.write(slices, () -> {
+            if (!connection.isClosed()) {
+                frames.forEach(SharedFrame::written);
+            }
+            frames.forEach(SharedFrame::release);
+        });
+    }
+
+    private void handshake() {
+        String request = StandardCharsets.ISO_8859_1.decode(inbound.duplicate()).toString();
+        int end = request.indexOf("\r\n\r\n");
+        if (end < 0) {
+            return;
+        }
+        inbound.position(inbound.position() + end + 4);
+        String key = null;
+        boolean upgrade = false;
+        for (String line : request.substring(0, end).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = value;
+            } else if (name.equalsIgnoreCase("Upgrade")) {
+                upgrade = value.equalsIgnoreCase("websocket");
+            }
+        }
+        if (!upgrade || key == null) {
+            connection.write(ByteBuffer.wrap("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1)));
+            connection.closeAfterFlush();
+            closeSent = true;
+            return;
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+        connection.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+        upgraded = true;
+    }
+
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 unavailable", e);
+        }
+    }
+
+    // Returns false when the buffer does not yet hold a complete frame
+    private boolean readFrame() {
+        int start = inbound.position();
+        if (inbound.remaining() < 2) {
+            return false;
+        }
+        int first = inbound.get(start) & 0xFF;
+        int second = inbound.get(start + 1) & 0xFF;
+        boolean fin = (first & 0x80) != 0;
+        int opcode = first & 0x0F;
+        long length = second & 0x7F;
+        int header = 2;
+        if (length == 126) {
+            if (inbound.remaining() < 4) {
+                return false;
+            }
+            length = inbound.getShort(start + 2) & 0xFFFF;
+            header = 4;
+        } else if (length == 127) {
+            if (inbound.remaining() < 10) {
+                return false;
+            }
+            length = inbound.getLong(start + 2);
+            header = 10;
+        }
+        if ((second & 0x80) == 0) {
+            close(1002);
+            return false;
+        }
+        if (length < 0 || length > MAX_MESSAGE_BYTES) {
+            close(1009);
+            return false;
+        }
+        if (inbound.remaining() < header + 4 + length) {
+            return false;
+        }
+        int maskAt = start + header;
+        byte[] payload = new byte[(int) length];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (inbound.get(maskAt + 4 + i) ^ inbound.get(maskAt + (i & 3)));
+        }
+        inbound.position(maskAt + 4 + payload.length);
+        onFrame(fin, opcode, payload);
+        return true;
+    }
+
+    private void onFrame(boolean fin, int opcode, byte[] payload) {
+        switch (opcode) {
+            case OP_TEXT:
+            case OP_CONTINUATION:
+                if (opcode == OP_TEXT) {
+                    fragments = new ByteArrayOutputStream();
+                } else if (fragments == null) {
+                    close(1002);
+                    return;
+                }
+                fragments.write(payload, 0, payload.length);
+                if (fragments.size() > MAX_MESSAGE_BYTES) {
+                    close(1009);
+                } else if (fin) {
+                    String text = new String(fragments.toByteArray(), StandardCharsets.UTF_8);
+                    fragments = null;
+                    commands.handle(text);
+                }
+                break;
+            case OP_PING:
+                commands.heartbeat();
+                connection.write(frame(OP_PONG, payload));
+                break;
+            case OP_PONG:
+                // Answers to our idle pings keep a quiet client present
+                commands.heartbeat();
+                break;
+            case OP_CLOSE:
+                int code = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : 1000;
+                close(code);
+                break;
+            default:
+                close(1003);
+        }
+    }
+
+    private void close(int code) {
+        if (closeSent) {
+            return;
+        }
+        closeSent = true;
+        connection.write(frame(OP_CLOSE, new byte[] {(byte) (code >> 8), (byte) code}));
+        connection.closeAfterFlush();
+    }
+
+    // Server frames are never masked
+    static ByteBuffer frame(int opcode, byte[] payload) {
+        int header = payload.length < 126 ? 2 : payload.length <= 0xFFFF ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(header + payload.length);
+        frame.put((byte) (0x80 | opcode));
+        if (header == 2) {
+            frame.put((byte) payload.length);
+        } else if (header == 4) {
+            frame.put((byte) 126).putShort((short) payload.length);
+        } else {
+            frame.put((byte) 127).putLong(payload.length);
+        }
+        return frame.put(payload).flip();
+    }
+}
+
+// Chat user reached over HTTP; deliveries wait here until a long-poll or event stream picks them up
+class HttpUser extends User implements BatchObserver {
+    private static final int MAX_BUFFERED = 1000;
+    private static final SecureRandom TOKENS = new SecureRandom();
+
+    // A message's onWritten runs once the response or event carrying it has been written
+    private final Deque<PendingText> pending = new ArrayDeque<>();
+    private HttpSession poller;
+    private HttpSession stream;
+    private boolean flushScheduled;
+    // Requests for one user may arrive on several connections, and so on several loops
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+    // Issued at login and required on every later request, so knowing a username is not enough to act as it
+    private final byte[] token = new byte[16];
+
+    public HttpUser(String username) {
+        super(username);
+        TOKENS.nextBytes(token);
+    }
+
+    public String token() {
+        return HexFormat.of().formatHex(token);
+    }
+
+    public boolean holds(String presented) {
+        if (presented == null || presented.length() != token.length * 2) {
+            return false;
+        }
+        try {
+            return MessageDigest.isEqual(token, HexFormat.of().parseHex(presented));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // HTTP has no connection to lose, so every request is a heartbeat and only silence ends the session
+    public void startPresence() {
+        Presence.getInstance().track(this, this::evict);
+    }
+
+    // Kept so logout leaves just these rooms instead of visiting every room
+    public Set<String> joinedRooms() {
+        return joinedRooms;
+    }
+
+    public void heartbeat() {
+        PresenceLease lease = presence();
+        if (lease != null) {
+            lease.heartbeat();
+        }
+    }
+
+    // A parked poll or open event stream ends with the session; the client's next request is unauthorized
+    @Override
+    public void evict() {
+        List<HttpSession> open = new ArrayList<>(2);
+        synchronized (this) {
+            if (stream != null) {
+                open.add(stream);
+            }
+            if (poller != null) {
+                open.add(poller);
+            }
+        }
+        for (HttpSession session : open) {
+            NioConnection connection = session.connection();
+            connection.execute(connection::close);
+        }
+    }
+
     @Override
     public void update(String message) {
-        System.out.println(username + " received: " + message);
+        HttpSession target;
+        synchronized (this) {
+            buffer(new PendingText(message, null));
+            target = stream != null ? stream : poller;
+            if (target == null || flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        // Everything that arrives before the loop runs this task rides in the same response
+        target.connection().execute(this::flush);
+    }
+
+    @Override
+    public void update(List<SharedFrame> frames) {
+        HttpSession target;
+        synchronized (this) {
+            for (SharedFrame frame : frames) {
+                buffer(PendingText.of(frame, isSequenced()));
+                frame.release();
+            }
+            target = stream != null ? stream : poller;
+            if (target == null || flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        target.connection().execute(this::flush);
+    }
+
+    private void buffer(PendingText message) {
+        if (pending.size() == MAX_BUFFERED) {
+            evictOldest();
+        }
+        pending.add(message);
+    }
+
+    // Untracked messages go first; a tracked one is only dropped when nothing else is left, and is then sent again
+    private void evictOldest() {
+        for (Iterator<PendingText> queued = pending.iterator(); queued.hasNext(); ) {
+            if (!queued.next().isTracked()) {
+                queued.remove();
+                return;
+            }
+        }
+        pending.poll().dropped();
+    }
+
+    private void flush() {
+        HttpSession target;
+        List<PendingText> batch;
+        synchronized (this) {
+            flushScheduled = false;
+            target = stream != null ? stream : poller;
+            if (target == null || pending.isEmpty()) {
+                return;
+            }
+            if (target == poller) {
+                poller = null;
+            }
+            batch = drain();
+        }
+        target.deliver(batch);
+    }
+
+    // Returns the queued batch immediately, or parks the session until something arrives
+    public synchronized List<PendingText> poll(HttpSession session) {
+        if (!pending.isEmpty()) {
+            return drain();
+        }
+        poller = session;
+        return null;
+    }
+
+    public synchronized boolean unpark(HttpSession session) {
+        if (poller != session) {
+            return false;
+        }
+        poller = null;
+        return true;
+    }
+
+    public synchronized List<PendingText> attachStream(HttpSession session) {
+        stream = session;
+        return drain();
+    }
+
+    public synchronized void detachStream(HttpSession session) {
+        if (stream == session) {
+            stream = null;
+        }
+    }
+
+    private List<PendingText> drain() {
+        List<PendingText> batch = new ArrayList<>(pending);
+        pending.clear();
+        return batch;
     }
 }
 
-// Singleton Pattern for managing chat rooms
-class ChatRoom {
-    private static Map<String, ChatRoom> rooms = new HashMap<>();
-    private String roomId;
-    private List<User> users;
-    private List<String> messageHistory;
+// HTTP/1.1 with keep-alive: REST for sends, long-poll or Server-Sent Events for receives.
+// POST /login?user=<name> answers with a token that every other route needs as a bearer credential.
+class HttpSession implements ConnectionHandler {
+    private static final int MAX_REQUEST_BYTES = 64 * 1024;
+    private static final long DEFAULT_POLL_MILLIS = 25_000;
+    private static final long MAX_POLL_MILLIS = 60_000;
 
-    private ChatRoom(String roomId) {
-        this.roomId = roomId;
-        users = new ArrayList<>();
-        messageHistory = new ArrayList<>();
+    private NioConnection connection;
+    private ByteBuffer inbound = ByteBuffer.allocate(2048);
+    private HttpUser parkedFor;
+    private long pollDeadline;
+    private HttpUser streamingFor;
+    // Set while a room loop is answering the current request; later pipelined requests wait for it
+    private boolean awaitingRoom;
+    private boolean closeAfterResponse;
+
+    public NioConnection connection() {
+        return connection;
     }
 
-    public static ChatRoom getRoom(String roomId) {
-        return rooms.computeIfAbsent(roomId, ChatRoom::new);
+    @Override
+    public void onOpen(NioConnection connection) {
+        this.connection = connection;
     }
 
-    public void joinRoom(User user) {
-        users.add(user);
-        broadcastMessage(user.getUsername() + " has joined the chat.");
-        sendHistory(user);
+    @Override
+    public void onData(NioConnection connection, ByteBuffer data) {
+        if (inbound.remaining() < data.remaining()) {
+            int needed = inbound.position() + data.remaining();
+            if (needed > MAX_REQUEST_BYTES) {
+                respond(413, "Payload Too Large", "text/plain", "");
+                connection.closeAfterFlush();
+                return;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, inbound.capacity() * 2));
+            inbound.flip();
+            grown.put(inbound);
+            inbound = grown;
+        }
+        inbound.put(data);
+        processRequests();
     }
 
-    public void leaveRoom(User user) {
-        users.remove(user);
-        broadcastMessage(user.getUsername() + " has left the chat.");
+    @Override
+    public void onTick(NioConnection connection, long now) {
+        // A client holding an event stream open is listening even if it never sends
+        if (streamingFor != null) {
+            streamingFor.heartbeat();
+        }
+        if (parkedFor != null && now >= pollDeadline && parkedFor.unpark(this)) {
+            parkedFor = null;
+            respondJson(Collections.emptyList());
+            processRequests();
+        }
     }
 
-    public void broadcastMessage(String message) {
-        messageHistory.add(message);
-        for (User user : users) {
-            user.update(message);
+    @Override
+    public void onClose(NioConnection connection) {
+        if (parkedFor != null) {
+            parkedFor.unpark(this);
+        }
+        if (streamingFor != null) {
+            streamingFor.detachStream(this);
         }
     }
 
-    private void sendHistory(User user) {
-        System.out.println("Sending chat history to " + user.getUsername() + "...");
-        for (String message : messageHistory) {
-            user.update(message);
+    // Called on this connection's loop with every message queued since the last delivery
+    public void deliver(List<PendingText> batch) {
+        if (streamingFor != null) {
+            writeEvents(batch);
+        } else {
+            parkedFor = null;
+            respondMessages(batch);
+            processRequests();
         }
     }
 
-    public void privateMessage(User fromUser, User toUser, String message) {
-        String privateMessage = "(Private) " + fromUser.getUsername() + " to " + toUser.getUsername() + ": " + message;
-        fromUser.update(privateMessage);
-        toUser.update(privateMessage);
+    // Pipelined requests wait behind a parked poll so responses stay in order
+    private void processRequests() {
+        inbound.flip();
+        try {
+            while (parkedFor == null && streamingFor == null && !awaitingRoom && parseRequest()) {
+                // Keep handling complete requests
+            }
+        } finally {
+            // Even if a handler throws, the buffer must be left ready for the next read
+            inbound.compact();
+        }
     }
 
-    public List<User> getActiveUsers() {
-        return users;
+    private boolean parseRequest() {
+        String buffered = StandardCharsets.ISO_8859_1.decode(inbound.duplicate()).toString();
+        int headerEnd = buffered.indexOf("\r\n\r\n");
+        if (headerEnd < 0) {
+            return false;
+        }
+        String[] lines = buffered.substring(0, headerEnd).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            respond(400, "Bad Request", "text/plain", "");
+            connection.closeAfterFlush();
+            inbound.position(inbound.limit());
+            return false;
+        }
+        int contentLength = 0;
+        boolean keepAlive = requestLine[2].equals("HTTP/1.1");
+        String token = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = parseLength(value);
+            } else if (name.equalsIgnoreCase("Connection")) {
+                keepAlive = value.equalsIgnoreCase("keep-alive");
+            } else if (name.equalsIgnoreCase("Authorization") && value.regionMatches(true, 0, "Bearer ", 0, 7)) {
+                token = value.substring(7).trim();
+            }
+        }
+        // Without a usable length the next request cannot be found, so the connection goes too
+        if (contentLength < 0 || contentLength > MAX_REQUEST_BYTES) {
+            respond(400, "Bad Request", "text/plain", "Invalid Content-Length.");
+            connection.closeAfterFlush();
+            inbound.position(inbound.limit());
+            return false;
+        }
+        int bodyStart = inbound.position() + headerEnd + 4;
+        if (inbound.limit() - bodyStart < contentLength) {
+            return false;
+        }
+        byte[] body = new byte[contentLength];
+        inbound.get(bodyStart, body);
+        inbound.position(bodyStart + contentLength);
+        closeAfterResponse = !keepAlive;
+
+        String target = requestLine[1];
+        int queryStart = target.indexOf('?');
+        Map<String, String> query = parseQuery(queryStart < 0 ? "" : target.substring(queryStart + 1));
+        if (query == null) {
+            respond(400, "Bad Request", "text/plain", "Malformed query string.");
+            return true;
+        }
+        String[] path = (queryStart < 0 ? target : target.substring(0, queryStart)).replaceAll("^/+", "").split("/");
+        // EventSource cannot set headers, so the token may also come as ?token=
+        handle(requestLine[0], path, query, token != null ? token : query.get("token"), new String(body, StandardCharsets.UTF_8));
+        return true;
+    }
+
+    private void handle(String method, String[] path, Map<String, String> query, String token, String body) {
+        String username = query.get("user");
+        User user = username == null ? null : UserRegistry.getInstance().find(username);
+        if (method.equals("POST") && path.length == 1 && path[0].equals("login")) {
+            HttpUser created = username == null ? null : new HttpUser(username);
+            if (created == null || !UserRegistry.getInstance().register(created)) {
+                respond(409, "Conflict", "text/plain", "User already exists or no user given.");
+            } else {
+                created.setSequenced("1".equals(query.get("sequences")));
+                created.startPresence();
+                DirectMessageRouter.getInstance().connect(created);
+                // The body is the session token for the Authorization: Bearer header of every later request
+                respond(200, "OK", "text/plain", created.token());
+            }
+            return;
+        }
+        // A session that has logged out stays registered until its rooms have let it go, but is already done
+        PresenceLease lease = user == null ? null : user.presence();
+        if (!(user instanceof HttpUser) || !((HttpUser) user).holds(token) || lease == null || !lease.isActive()) {
+            respond(401, "Unauthorized", "text/plain", "Log in first with POST /login?user=<name> and send the token it returns.");
+            return;
+        }
+        HttpUser httpUser = (HttpUser) user;
+        httpUser.heartbeat();
+        String route = method + " " + (path.length > 0 ? path[0] : "") + (path.length > 2 ? "/" + path[2] : "");
+        switch (route) {
+            case "POST logout":
+                Presence.getInstance().end(httpUser.presence(), httpUser.joinedRooms());
+                respond(204, "No Content", "text/plain", "");
+                break;
+            case "POST heartbeat":
+                respond(204, "No Content", "text/plain", "");
+                break;
+            case "POST rooms/join":
+                // after=<sequence> resumes a reconnecting client with only the messages it missed
+                String after = query.get("after");
+                long lastSeen = after == null ? -1 : parseNumber(after);
+                if (after != null && lastSeen < 0) {
+                    respond(400, "Bad Request", "text/plain", "after must be a sequence number.");
+                } else {
+                    httpUser.joinedRooms().add(path[1]);
+                    if (after == null) {
+                        ChatRoom.getRoom(path[1]).joinRoom(httpUser);
+                    } else {
+                        ChatRoom.getRoom(path[1]).resumeRoom(httpUser, lastSeen);
+                    }
+                    respond(204, "No Content", "text/plain", "");
+                }
+                break;
+            case "POST rooms/leave":
+                httpUser.joinedRooms().remove(path[1]);
+                ChatRoom room = ChatRoom.findRoom(path[1]);
+                if (room != null) {
+                    room.leaveRoom(httpUser);
+                }
+                respond(204, "No Content", "text/plain", "");
+                break;
+            case "POST rooms/messages":
+                ChatRoom.getRoom(path[1]).broadcastMessage(httpUser, body);
+                respond(204, "No Content", "text/plain", "");
+                break;
+            case "POST users/messages":
+                if (!DirectMessageRouter.getInstance().send(httpUser, path[1], body)) {
+                    respond(404, "Not Found", "text/plain", "Recipient does not exist.");
+                } else {
+                    respond(204, "No Content", "text/plain", "");
+                }
+                break;
+            case "POST inbox/ack":
+                // POST /inbox/<sequence>/ack confirms every private message up to and including that sequence
+                long acknowledged = parseNumber(path[1]);
+                if (acknowledged < 0) {
+                    respond(400, "Bad Request", "text/plain", "Expected /inbox/<sequence>/ack.");
+                } else {
+                    DirectMessageRouter.getInstance().acknowledge(httpUser, acknowledged);
+                    respond(204, "No Content", "text/plain", "");
+                }
+                break;
+            case "POST rooms/read":
+                // POST /rooms/<room>/read?sequence=<n> records a read receipt for that message
+                long read = parseNumber(query.getOrDefault("sequence", ""));
+                if (read < 0) {
+                    respond(400, "Bad Request", "text/plain", "sequence must be a sequence number.");
+                } else {
+                    ChatRoom readIn = ChatRoom.findRoom(path[1]);
+                    if (readIn != null) {
+                        readIn.markRead(httpUser, read);
+                    }
+                    respond(204, "No Content", "text/plain", "");
+                }
+                break;
+            case "GET rooms/unread":
+                long unread = parseNumber(query.getOrDefault("sequence", ""));
+                ChatRoom unreadIn = ChatRoom.findRoom(path[1]);
+                if (unread < 0) {
+                    respond(400, "Bad Request", "text/plain", "sequence must be a sequence number.");
+                } else if (unreadIn == null) {
+                    respondJson(Collections.emptyList());
+                } else {
+                    respondNamesLater(unreadIn.membersWhoHaveNotRead(unread));
+                }
+                break;
+            case "GET rooms/users":
+                ChatRoom members = ChatRoom.findRoom(path[1]);
+                if (members == null) {
+                    respondJson(Collections.emptyList());
+                } else {
+                    respondNamesLater(members.activeUsers());
+                }
+                break;
+            case "GET poll":
+                long timeout = parseNumber(query.getOrDefault("timeout", String.valueOf(DEFAULT_POLL_MILLIS)));
+                if (timeout < 0) {
+                    respond(400, "Bad Request", "text/plain", "timeout must be a number of milliseconds.");
+                    break;
+                }
+                List<PendingText> ready = httpUser.poll(this);
+                if (ready != null) {
+                    respondMessages(ready);
+                } else {
+                    parkedFor = httpUser;
+                    pollDeadline = System.currentTimeMillis() + Math.min(MAX_POLL_MILLIS, timeout);
+                }
+                break;
+            case "GET events":
+                streamingFor = httpUser;
+                connection.write(ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\n"
+                        + "Cache-Control: no-cache\r\nConnection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+                writeEvents(httpUser.attachStream(this));
+                break;
+            default:
+                respond(404, "Not Found", "text/plain", "Unknown route.");
+        }
+    }
+
+    // The room loop answers; later pipelined requests wait until the response is written from this connection's loop
+    private void respondNamesLater(CompletableFuture<List<User>> members) {
+        awaitingRoom = true;
+        members.thenAcceptAsync(answer -> {
+            List<String> names = new ArrayList<>(answer.size());
+            for (User member : answer) {
+                names.add(member.getUsername());
+            }
+            awaitingRoom = false;
+            respondJson(names);
+            processRequests();
+        }, connection::execute);
+    }
+
+    private void writeEvents(List<PendingText> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        StringBuilder events = new StringBuilder();
+        for (PendingText message : batch) {
+            events.append("data: ").append(message.text.replace("\n", "\ndata: ")).append("\n\n");
+        }
+        connection.write(ByteBuffer.wrap(events.toString().getBytes(StandardCharsets.UTF_8)), onSent(batch));
+    }
+
+    private void respondMessages(List<PendingText> batch) {
+        List<String> texts = new ArrayList<>(batch.size());
+        for (PendingText message : batch) {
+            texts.add(message.text);
+        }
+        respondJson(texts, onSent(batch));
+    }
+
+    // Messages count as delivered only once the bytes carrying them have left, not if the client went away first
+    private Runnable onSent(List<PendingText> batch) {
+        return () -> {
+            if (!connection.isClosed()) {
+                batch.forEach(PendingText::written);
+            }
+        };
+    }
+
+    private void respondJson(List<String> values) {
+        respondJson(values, null);
+    }
+
+    private void respondJson(List<String> values, Runnable onWritten) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendJsonString(json, values.get(i));
+        }
+        respond(200, "OK", "application/json", json.append(']').toString(), onWritten);
+    }
+
+    private void respond(int status, String reason, String contentType, String body) {
+        respond(status, reason, contentType, body, null);
+    }
+
+    private void respond(int status, String reason, String contentType, String body, Runnable onWritten) {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\nContent-Type: " + contentType + "; charset=utf-8\r\n"
+                + "Content-Length: " + content.length + "\r\nConnection: " + (closeAfterResponse ? "close" : "keep-alive") + "\r\n\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer response = ByteBuffer.allocate(headBytes.length + content.length);
+        connection.write(response.put(headBytes).put(content).flip(), onWritten);
+        if (closeAfterResponse) {
+            connection.closeAfterFlush();
+        }
+    }
+
+    // Null when a value is not valid percent-encoding
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> values = new HashMap<>();
+        try {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    values.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return values;
+    }
+
+    // Client-supplied numbers: -1 for anything that is not a non-negative decimal, so routes can answer 400
+    private static long parseNumber(String text) {
+        try {
+            return Math.max(-1, Long.parseLong(text));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int parseLength(String text) {
+        long length = parseNumber(text);
+        return length > Integer.MAX_VALUE ? -1 : (int) length;
+    }
+
+    private static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
     }
 }
 
-// Adapter Pattern for communication protocols
-interface CommunicationProtocol {
-    void connect();
+// Executors for session threads: a virtual thread per task when the JDK has them (21+), else a platform pool
+class SessionExecutors {
+    private SessionExecutors() {}
+
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Looked up reflectively so the application still compiles and runs on JDK 17
+    public static ExecutorService virtualThreadPerTask() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need JDK 21 or later", e);
+        }
+    }
+
+    public static ExecutorService platformPool(int threads) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "session-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // "virtual" falls back to a platform pool with a warning on JDKs without virtual threads
+    public static ExecutorService forMode(String mode, int platformThreads) {
+        if (mode.equalsIgnoreCase("virtual")) {
+            if (virtualThreadsAvailable()) {
+                return virtualThreadPerTask();
+            }
+            System.out.println("Virtual threads unavailable on this JDK; using " + platformThreads + " platform threads.");
+        }
+        return platformPool(platformThreads);
+    }
 }
 
-class WebSocketProtocol implements CommunicationProtocol {
+// Chat user whose deliveries are queued for a blocking socket session's writer thread
+class LineUser extends User implements FrameObserver {
+    private final LineSession session;
+
+    public LineUser(String username, LineSession session) {
+        super(username);
+        this.session = session;
+    }
+
     @Override
-    public void connect() {
-        System.out.println("Connected via WebSocket.");
+    public void update(String message) {
+        session.send(message);
+    }
+
+    @Override
+    public void update(SharedFrame frame) {
+        try {
+            session.send(PendingText.of(frame, isSequenced()));
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return !session.isCongested();
+    }
+
+    @Override
+    public void whenReady(Runnable task) {
+        session.whenDrained(task);
+    }
+
+    @Override
+    public void evict() {
+        session.close();
     }
 }
 
-class HTTPProtocol implements CommunicationProtocol {
+// Blocking-style session: one thread reads commands, another drains the outbound queue to the socket
+class LineSession implements Runnable {
+    private static final int MAX_QUEUED = 1024;
+    private static final int HIGH_WATER = MAX_QUEUED * 3 / 4;
+    private static final PendingText END_OF_STREAM = new PendingText(null, null);
+
+    private final Socket socket;
+    private final Executor writers;
+    private final BlockingQueue<PendingText> outbound = new ArrayBlockingQueue<>(MAX_QUEUED);
+    private final ChatCommandHandler commands = new ChatCommandHandler(name -> new LineUser(name, this), this::send, Runnable::run);
+    private final AtomicReference<Runnable> drainWaiter = new AtomicReference<>();
+
+    // Writers come from their own executor: sharing the readers' fixed pool would let only half as many sessions run
+    public LineSession(Socket socket, Executor writers) {
+        this.socket = socket;
+        this.writers = writers;
+    }
+
+    // Never blocks the caller: a client too slow to keep up loses messages instead of stalling delivery
+    public void send(String message) {
+        send(new PendingText(message, null));
+    }
+
+    // The message's onWritten runs on the writer thread once the line has been flushed to the socket, never if it is lost
+    public void send(PendingText message) {
+        if (!outbound.offer(message)) {
+            message.dropped();
+        }
+    }
+
+    public boolean isCongested() {
+        return outbound.size() >= HIGH_WATER;
+    }
+
+    // Runs task once the writer has worked the queue down to half the high-water mark
+    public void whenDrained(Runnable task) {
+        drainWaiter.set(task);
+        if (outbound.size() <= HIGH_WATER / 2) {
+            runDrainWaiter();
+        }
+    }
+
+    private void runDrainWaiter() {
+        Runnable waiter = drainWaiter.getAndSet(null);
+        if (waiter != null) {
+            waiter.run();
+        }
+    }
+
+    // Unblocks the reader, which then runs the usual disconnect
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    @Override
+    public void run() {
+        writers.execute(this::writeLoop);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    commands.handle(line);
+                }
+            }
+        } catch (IOException e) {
+            // Client went away; clean up below
+        } finally {
+            commands.disconnect();
+            outbound.clear();
+            outbound.offer(END_OF_STREAM);
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingText> unflushed = new ArrayList<>();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            while (true) {
+                PendingText message = outbound.take();
+                if (message == END_OF_STREAM) {
+                    return;
+                }
+                if (outbound.size() <= HIGH_WATER / 2) {
+                    runDrainWaiter();
+                }
+                writer.write(message.text);
+                writer.write('\n');
+                unflushed.add(message);
+                // Flush once per burst rather than once per line
+                if (outbound.isEmpty()) {
+                    writer.flush();
+                    unflushed.forEach(PendingText::written);
+                    unflushed.clear();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Socket closed underneath us
+        } finally {
+            close();
+            runDrainWaiter();
+        }
+    }
+}
+
+// Plain TCP line protocol served thread-per-connection, on virtual threads by default
+class BlockingSocketProtocol implements CommunicationProtocol {
     @Override
     public void connect() {
-        System.out.println("Connected via HTTP.");
+        String mode = System.getProperty("chat.tcp.threads", "virtual");
+        if (mode.equalsIgnoreCase("virtual") && !SessionExecutors.virtualThreadsAvailable()) {
+            System.out.println("Virtual threads unavailable on this JDK; falling back to platform threads.");
+            mode = "platform";
+        }
+        int platformThreads = Integer.getInteger("chat.tcp.platformThreads", 256);
+        ExecutorService readers = SessionExecutors.forMode(mode, platformThreads);
+        ExecutorService writers = SessionExecutors.forMode(mode, platformThreads);
+        try {
+            ServerSocket server = new ServerSocket(Integer.getInteger("chat.tcp.port", 8082), 1024);
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        socket.setTcpNoDelay(true);
+                        readers.execute(new LineSession(socket, writers));
+                    } catch (IOException e) {
+                        System.err.println("Accept failed: " + e.getMessage());
+                    }
+                }
+            }, "tcp-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            System.out.println("Connected via TCP (" + mode + " threads). Listening on port " + server.getLocalPort() + ".");
+        } catch (IOException e) {
+            System.out.println("TCP server failed to start: " + e.getMessage());
+        }
     }
 }
 
-class CommunicationAdapter {
-    private CommunicationProtocol protocol;
+// Simulated sessions (join, chat with blocking think time, leave) on virtual threads versus a platform pool.
+// Run with: java -cp <classes> SessionBenchmark [sessions...]
+class SessionBenchmark {
+    private static final int ROOMS = 100;
+    private static final int MESSAGES_PER_SESSION = 5;
+    private static final long THINK_MILLIS = 50;
 
-    public CommunicationAdapter(CommunicationProtocol protocol) {
-        this.protocol = protocol;
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.data.dir", Files.createTempDirectory("chat-bench").toString());
+        System.setProperty("chat.output", System.getProperty("chat.output", "null"));
+        int[] sessionCounts = args.length == 0 ? new int[] {10_000, 50_000, 100_000} : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        int platformThreads = Integer.getInteger("chat.bench.platformThreads", 512);
+        if (!SessionExecutors.virtualThreadsAvailable()) {
+            System.out.println("Virtual threads unavailable on this JDK; only the platform pool is measured.");
+        }
+        System.out.printf("%-10s %-16s %10s %12s %14s %14s %15s%n", "sessions", "mode", "wall ms", "msgs/s", "delivered/s",
+                "peak sessions", "peak platform");
+        for (int sessions : sessionCounts) {
+            if (SessionExecutors.virtualThreadsAvailable()) {
+                run(sessions, "virtual", SessionExecutors.virtualThreadPerTask());
+            }
+            run(sessions, "platform-" + platformThreads, SessionExecutors.platformPool(platformThreads));
+        }
+        MessageStore.getInstance().close();
     }
 
-    public void connect() {
-        protocol.connect();
+    // Peak sessions counts tasks running at once, one thread each whether virtual or platform. Peak platform
+    // is the JVM's own high-water mark for platform threads, which virtual threads do not add to.
+    private static void run(int sessions, String mode, ExecutorService executor) throws InterruptedException {
+        AtomicLong delivered = new AtomicLong();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peakRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(sessions);
+        String prefix = mode + "-" + sessions + "-";
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            int session = i;
+            executor.execute(() -> {
+                peakRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    simulateSession(prefix + session, "bench-" + (session % ROOMS), delivered);
+                } finally {
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        executor.shutdown();
+        long sent = (long) sessions * MESSAGES_PER_SESSION;
+        System.out.printf("%-10d %-16s %10d %12d %14d %14d %15d%n", sessions, mode, wallMillis, sent * 1000 / Math.max(1, wallMillis),
+                delivered.get() * 1000 / Math.max(1, wallMillis), peakRunning.get(), threads.getPeakThreadCount());
+    }
+
+    private static void simulateSession(String username, String roomId, AtomicLong delivered) {
+        User user = new User(username) {
+            @Override
+            public void update(String message) {
+                delivered.incrementAndGet();
+            }
+        };
+        UserRegistry.getInstance().register(user);
+        ChatRoom.getRoom(roomId).joinRoom(user);
+        try {
+            for (int i = 0; i < MESSAGES_PER_SESSION; i++) {
+                // Stands in for a blocking socket read between client messages
+                Thread.sleep(THINK_MILLIS);
+                ChatRoom.getRoom(roomId).broadcastMessage(user, "message " + i);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ChatRoom room = ChatRoom.findRoom(roomId);
+            if (room != null) {
+                room.leaveRoom(user).join();
+            }
+            UserRegistry.getInstance().unregister(user);
+            DeliveryEngine.getInstance().release(user);
+        }
     }
 }
 
 // Main class with dynamic user input
 public class DynamicChatApplication {
-    private static Map<String, User> allUsers = new HashMap<>();
     private static Scanner scanner = new Scanner(System.in);
 
     public static void main(String[] args) {
+        ChatRoom.recover();
+
         // Choose protocol
         CommunicationAdapter adapter = chooseProtocol();
         adapter.connect();
 
         while (true) {
-            System.out.println("\n1. Create User\n2. Create/Join Chat Room\n3. Send Message\n4. Private Message\n5. View Active Users\n6. Exit");
+            System.out.println("\n1. Create User\n2. Create/Join Chat Room\n3. Send Message\n4. Private Message\n5. View Active Users\n6. View Older Messages\n7. Exit");
             System.out.print("Choose an option: ");
             int choice = scanner.nextInt();
             scanner.nextLine(); // Consume newline
@@ -139,6 +5798,16 @@ public class DynamicChatApplication {
                     viewActiveUsers();
                     break;
                 case 6:
+                    viewOlderMessages();
+                    break;
+                case 7:
+                    RoomLoops.getInstance().shutdown(2000);
+                    DeliveryEngine.getInstance().shutdown(2000);
+                    if (DeliveryEngine.getInstance().droppedCount() > 0) {
+                        System.out.println("Dropped " + DeliveryEngine.getInstance().droppedCount() + " messages for subscribers that fell behind.");
+                    }
+                    OutputSinks.get().flush();
+                    MessageStore.getInstance().close();
                     System.exit(0);
                 default:
                     System.out.println("Invalid choice. Try again.");
@@ -151,11 +5820,14 @@ public class DynamicChatApplication {
         System.out.println("Select communication protocol:");
         System.out.println("1. WebSocket");
         System.out.println("2. HTTP");
+        System.out.println("3. TCP (thread per connection)");
         int choice = scanner.nextInt();
         scanner.nextLine(); // Consume newline
 
         if (choice == 1) {
             return new CommunicationAdapter(new WebSocketProtocol());
+        } else if (choice == 3) {
+            return new CommunicationAdapter(new BlockingSocketProtocol());
         } else {
             return new CommunicationAdapter(new HTTPProtocol());
         }
@@ -165,11 +5837,12 @@ public class DynamicChatApplication {
     private static void createUser() {
         System.out.print("Enter username: ");
         String username = scanner.nextLine();
-        if (allUsers.containsKey(username)) {
+        User user = new User(username);
+        if (!UserRegistry.getInstance().register(user)) {
             System.out.println("User already exists.");
         } else {
-            allUsers.put(username, new User(username));
             System.out.println("User " + username + " created.");
+            DirectMessageRouter.getInstance().connect(user);
         }
     }
 
@@ -177,7 +5850,7 @@ public class DynamicChatApplication {
     private static void joinChatRoom() {
         System.out.print("Enter your username: ");
         String username = scanner.nextLine();
-        User user = allUsers.get(username);
+        User user = UserRegistry.getInstance().find(username);
         if (user == null) {
             System.out.println("User does not exist. Create the user first.");
             return;
@@ -193,7 +5866,7 @@ public class DynamicChatApplication {
     private static void sendMessage() {
         System.out.print("Enter your username: ");
         String username = scanner.nextLine();
-        User user = allUsers.get(username);
+        User user = UserRegistry.getInstance().find(username);
         if (user == null) {
             System.out.println("User does not exist. Create the user first.");
             return;
@@ -205,14 +5878,14 @@ public class DynamicChatApplication {
 
         System.out.print("Enter your message: ");
         String message = scanner.nextLine();
-        chatRoom.broadcastMessage(user.getUsername() + ": " + message);
+        chatRoom.broadcastMessage(user, message);
     }
 
     // Send a private message to another user
     private static void sendPrivateMessage() {
         System.out.print("Enter your username: ");
         String fromUsername = scanner.nextLine();
-        User fromUser = allUsers.get(fromUsername);
+        User fromUser = UserRegistry.getInstance().find(fromUsername);
         if (fromUser == null) {
             System.out.println("User does not exist. Create the user first.");
             return;
@@ -220,32 +5893,54 @@ public class DynamicChatApplication {
 
         System.out.print("Enter recipient's username: ");
         String toUsername = scanner.nextLine();
-        User toUser = allUsers.get(toUsername);
-        if (toUser == null) {
-            System.out.println("Recipient does not exist.");
-            return;
-        }
 
         System.out.print("Enter your private message: ");
         String message = scanner.nextLine();
-        ChatRoom chatRoom = ChatRoom.getRoom("Private"); // Simulate private chat room
-        chatRoom.privateMessage(fromUser, toUser, message);
+        if (!DirectMessageRouter.getInstance().send(fromUser, toUsername, message)) {
+            System.out.println("Recipient does not exist.");
+        }
     }
 
     // View active users in a chat room
     private static void viewActiveUsers() {
         System.out.print("Enter Chat Room ID: ");
         String roomId = scanner.nextLine();
-        ChatRoom chatRoom = ChatRoom.getRoom(roomId);
+        ChatRoom chatRoom = ChatRoom.findRoom(roomId);
 
-        List<User> activeUsers = chatRoom.getActiveUsers();
+        List<User> activeUsers = chatRoom == null ? Collections.emptyList() : chatRoom.getActiveUsers();
         if (activeUsers.isEmpty()) {
             System.out.println("No active users.");
         } else {
-            System.out.println("Active Users in Room " + roomId + ":");
+            System.out.println("Active Users in Room " + roomId + " (" + chatRoom.onlineMembers().cardinality() + " online):");
             for (User user : activeUsers) {
                 System.out.println(user.getUsername());
             }
         }
     }
+
+    // Page backwards through a room's history using a sequence-number cursor
+    private static void viewOlderMessages() {
+        System.out.print("Enter Chat Room ID: ");
+        String roomId = scanner.nextLine();
+        System.out.print("Show messages before sequence (blank for latest): ");
+        String cursor = scanner.nextLine().trim();
+        long before;
+        try {
+            before = cursor.isEmpty() ? Long.MAX_VALUE : Long.parseLong(cursor);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid sequence number.");
+            return;
+        }
+        HistoryPage page = ChatRoom.fetchHistory(roomId, before, 20);
+        if (page == null) {
+            System.out.println("Room does not exist.");
+            return;
+        }
+        for (ChatMessage message : page.getMessages()) {
+            System.out.println(message.getSequence() + "  " + message.render());
+        }
+        if (page.hasMore()) {
+            System.out.println("More history available before sequence " + page.getFirstSequence() + ".");
+        }
+    }
 }